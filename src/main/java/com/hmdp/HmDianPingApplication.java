@@ -4,10 +4,12 @@ import org.mybatis.spring.annotation.MapperScan;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @MapperScan("com.hmdp.mapper")
 @SpringBootApplication
 @EnableAspectJAutoProxy(exposeProxy = true)//暴露代理对象
+@EnableScheduling//开启定时任务
 public class HmDianPingApplication {
 
     public static void main(String[] args) {
@@ -1,10 +1,14 @@
 package com.hmdp.config;
 
+import cn.hutool.core.util.StrUtil;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 
 /**
  * @author cgJavaAfter
@@ -13,13 +17,30 @@ import org.springframework.context.annotation.Configuration;
 //集成redisson
 @Configuration
 public class RedisConfig {
+    //与spring.redis使用同一个redis，便于切换环境
+    @Value("${spring.redis.host}")
+    private String host;
+    @Value("${spring.redis.port}")
+    private int port;
+    @Value("${spring.redis.password:}")
+    private String password;
+
     @Bean
     public RedissonClient redissonClient(){
         //配置类
         Config config = new Config();
         //配置redis地址，设置端口和密码；使用useClusterServers()添加集群地址
-        config.useSingleServer().setAddress("redis://192.168.223.129:6379").setPassword("asuna");
+        config.useSingleServer().setAddress("redis://" + host + ":" + port)
+                .setPassword(StrUtil.isBlank(password) ? null : password);
         //创建客户端
         return Redisson.create(config);
     }
+
+    //redis发布订阅的监听容器，各节点间的本地缓存通过频道广播同步
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory factory){
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(factory);
+        return container;
+    }
 }
@@ -4,9 +4,16 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillStockStream;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.annotation.Resource;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.SystemConstants.MAX_STOCK_STREAM_VOUCHERS;
 
 /**
  * <p>
@@ -23,6 +30,9 @@ public class VoucherController {
     @Resource
     private IVoucherService voucherService;
 
+    @Resource
+    private SeckillStockStream seckillStockStream;
+
     /**
      * 新增普通券
      * @param voucher 优惠券信息
@@ -54,4 +64,14 @@ public class VoucherController {
     public Result queryVoucherOfShop(@PathVariable("shopId") Long shopId) {
        return voucherService.queryVoucherOfShop(shopId);
     }
+
+    /**
+     * 订阅秒杀券的实时库存(SSE)，库存变化时推送stock事件：{"voucherId":..,"stock":..}
+     * @param ids 优惠券id，最多订阅MAX_STOCK_STREAM_VOUCHERS个
+     * @return 事件流
+     */
+    @GetMapping(value = "/stock/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamStock(@RequestParam("ids") List<Long> ids) {
+        return seckillStockStream.subscribe(ids.stream().distinct().limit(MAX_STOCK_STREAM_VOUCHERS).collect(Collectors.toList()));
+    }
 }
@@ -3,6 +3,7 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -29,4 +30,32 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 查询秒杀订单的异步处理状态，只查询redis
+     * @param orderId 秒杀下单返回的订单id
+     * @return 0：处理中，1：下单成功，2：下单失败
+     */
+    @GetMapping("{id}/status")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
+
+    /**
+     * 取消未支付的订单，立即归还redis库存，数据库通过消息队列异步修改
+     * @param orderId 订单id
+     */
+    @PostMapping("{id}/cancel")
+    public Result cancelOrder(@PathVariable("id") Long orderId) {
+        return voucherOrderService.cancelOrder(orderId);
+    }
+
+    /**
+     * 已支付订单退款，立即归还redis库存，数据库状态和退款时间通过消息队列异步修改
+     * @param orderId 订单id
+     */
+    @PostMapping("{id}/refund")
+    public Result refundOrder(@PathVariable("id") Long orderId) {
+        return voucherOrderService.refundOrder(orderId);
+    }
 }
@@ -37,6 +37,11 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * 初始库存，创建后不再变化，对账时用于计算应剩余的库存
+     */
+    private Integer initStock;
+
     /**
      * 创建时间
      */
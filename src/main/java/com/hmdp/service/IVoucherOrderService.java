@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +18,17 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    boolean createVoucherOrder(VoucherOrder voucherOrder);
+
+    List<Long> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    Result queryOrderStatus(Long orderId);
+
+    List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds);
+
+    Result cancelOrder(Long orderId);
+
+    Result refundOrder(Long orderId);
+
+    void reverseOrders(List<VoucherOrder> reversals);
 }
@@ -1,6 +1,8 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.thread.ThreadUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
@@ -8,25 +10,61 @@ import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWork;
-import com.hmdp.utils.RedisLock;
+import com.hmdp.utils.RedisScriptRegistry;
+import com.hmdp.utils.SeckillAdmissionFilter;
+import com.hmdp.utils.SeckillOrderMetrics;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillVoucherWarmer;
 import com.hmdp.utils.UserHolder;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_BUCKET_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_EXPIRE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_TTL;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_REVERSED_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+import static com.hmdp.utils.SystemConstants.SECKILL_ORDER_FAIL;
+import static com.hmdp.utils.SystemConstants.SECKILL_ORDER_PENDING;
+import static com.hmdp.utils.SystemConstants.SECKILL_ORDER_SUCCESS;
+import static com.hmdp.utils.SystemConstants.VOUCHER_ORDER_CANCELLED;
+import static com.hmdp.utils.SystemConstants.VOUCHER_ORDER_PAID;
+import static com.hmdp.utils.SystemConstants.VOUCHER_ORDER_REFUNDED;
+import static com.hmdp.utils.SystemConstants.VOUCHER_ORDER_UNPAID;
 
 /**
  * <p>
@@ -45,131 +83,526 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate template;
 
     @Resource
-    private RedissonClient redissonClient;
+    private RedisIdWork redisIdWork;
 
     @Resource
-    private RedisIdWork redisIdWork;
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillAdmissionFilter admissionFilter;
+
+    @Resource
+    private SeckillVoucherWarmer voucherWarmer;
+
+    @Resource
+    private SeckillOrderMetrics orderMetrics;
+
+    //消费者数量，同时也是按用户分区的处理线程数量
+    @Value("${hmdp.seckill.order.consumer-count:4}")
+    private int consumerCount;
+
+    //消费者名称前缀，多节点部署时每个节点需配置不同前缀，保证消费者名称在evaDepart组内唯一
+    @Value("${hmdp.seckill.order.consumer-prefix:c}")
+    private String consumerPrefix;
+
+    //每次XREADGROUP读取的最大消息数量
+    @Value("${hmdp.seckill.order.batch-size:20}")
+    private int batchSize;
+
+    //消费者线程池，每个消费者独占一个线程读取消息队列
+    private ExecutorService consumerExecutor;
+
+    //分区线程，同一用户的订单始终路由到同一个单线程执行器，保证不会被并发处理
+    private ExecutorService[] partitionExecutors;
+
+    //pending消息空闲超过此时间才会被恢复，避免抢走消费者正在处理的消息
+    @Value("${hmdp.seckill.order.recover-min-idle-millis:30000}")
+    private long recoverMinIdleMillis;
+
+    //最大投递次数，达到后转入死信队列
+    @Value("${hmdp.seckill.order.max-deliveries:5}")
+    private long maxDeliveries;
+
+    //stream-orders长度上限，由脚本XADD MAXLEN ~近似裁剪；需远大于可能的积压量，否则未消费的订单会被裁掉
+    @Value("${hmdp.seckill.order.stream-max-len:1000000}")
+    private long streamMaxLen;
 
-    //创建异步线程
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    //stream-orders-dlq长度上限，XADD MAXLEN裁剪最早的死信；0代表不限制
+    @Value("${hmdp.seckill.order.dlq-max-len:100000}")
+    private long dlqMaxLen;
+
+    //未支付订单的超时时间，脚本下单时写入超时队列seckill:expire，由OrderExpiryWheel到期取消；0代表不超时取消
+    @Value("${hmdp.seckill.expire.timeout-millis:900000}")
+    private long expireTimeoutMillis;
+
+    //撤销(取消、退款)消息的type字段，由reverse.lua写入stream-orders
+    private static final String SECKILL_REVERSE_TYPE = "reverse";
+
+    //每次恢复最多扫描的pending页数
+    private static final int MAX_RECOVER_PAGES = 10;
+
+    private volatile boolean running;
 
     @PostConstruct//要在依赖加载后，对象使用前执行，而且只执行一次
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        createGroupIfAbsent();
+        running = true;
+        partitionExecutors = new ExecutorService[consumerCount];
+        for (int i = 0; i < consumerCount; i++) {
+            partitionExecutors[i] = Executors.newSingleThreadExecutor(
+                    new NamedThreadFactory("seckill-order-partition-" + i + "-", false));
+        }
+        consumerExecutor = Executors.newFixedThreadPool(consumerCount,
+                new NamedThreadFactory("seckill-order-consumer-", false));
+        for (int i = 1; i <= consumerCount; i++) {
+            consumerExecutor.submit(new VoucherOrderHandler(consumerPrefix + i));
+        }
+    }
+
+    //消费者组不存在时创建(MKSTREAM)，新环境启动后无需手动执行XGROUP CREATE
+    private void createGroupIfAbsent(){
+        try {
+            template.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    template.getStringSerializer().serialize(SECKILL_ORDER_STREAM), SECKILL_ORDER_GROUP,
+                    ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            //BUSYGROUP代表消费者组已存在
+            if(!String.valueOf(e.getMessage()).contains("BUSYGROUP")){
+                log.error("创建消费者组失败", e);
+            }
+        }
+    }
+
+    @PreDestroy//容器关闭时先停止读取消息，再等待已分发的订单处理完成，未ACK的消息留在pending中下次启动处理
+    private void destroy(){
+        running = false;
+        shutdownAndAwait(consumerExecutor);
+        for (ExecutorService partitionExecutor : partitionExecutors) {
+            shutdownAndAwait(partitionExecutor);
+        }
+    }
+
+    private void shutdownAndAwait(ExecutorService executor){
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
     }
 
     private class VoucherOrderHandler implements Runnable{
-        String queueName = "stream-orders";
+        private final String consumerName;
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
         @Override
         public void run() {
-            while (true){
+            while (running){
                 try {
-                    //1、从消息队列中获取信息；等同XREADGROUP语句
+                    //1、从消息队列中批量获取信息；等同XREADGROUP语句
                     List<MapRecord<String, Object, Object>> read = template.opsForStream().read(
-                            Consumer.from("evaDepart", "c1"),//group 和 consumer
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),//查询最大数量 和 最大等待时间
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())//指定队列 和 起始id(从下一个未消费消息开始)
+                            Consumer.from(SECKILL_ORDER_GROUP, consumerName),//group 和 consumer
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),//查询最大数量 和 最大等待时间
+                            StreamOffset.create(SECKILL_ORDER_STREAM, ReadOffset.lastConsumed())//指定队列 和 起始id(从下一个未消费消息开始)
                     );
                     //2、判断消息是否获取成功
                     if(read == null || read.isEmpty()){
                         continue;//获取失败继续下次循环，知道获取消息为止
                     }
-                    //3、解析消息的订单信息
-                    //String存储的是消息的id
-                    MapRecord<String, Object, Object> entries = read.get(0);
-                    Map<Object, Object> value = entries.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(),true);
-                    //4、获取成功进行下单
-
-                    System.out.println("voucher:"+voucherOrder);
-
-                    handleVoucherOrder(voucherOrder);
-                    //5、在读取消息后进行ACK确认，从queue移除
-                    template.opsForStream().acknowledge(queueName,"evaDepart",entries.getId());
+                    //3、分发处理并ACK，失败的消息留在pending中，由定时任务recoverPendingOrders重试
+                    handleRecords(read);
                 } catch (Exception e) {
+                    if(!running){
+                        break;
+                    }
                     log.error("订单异常",e);
-                    handlePendingList();
+                    //redis异常时稍作等待，避免空转
+                    ThreadUtil.sleep(1000);
                 }
             }
         }
+    }
+
+    //按用户分区处理一批消息，只对处理成功的消息进行ACK；返回是否全部成功
+    private boolean handleRecords(List<? extends MapRecord<String, ?, ?>> records) throws Exception {
+        //1、逐条解析消息的订单信息，并根据userId路由到对应分区；无法解析的消息重试也不会成功，单独转入死信队列，不影响同批的其他消息
+        Map<Integer, List<MapRecord<String, ?, ?>>> partitions = new HashMap<>();
+        List<RecordId> malformed = new ArrayList<>();
+        for (MapRecord<String, ?, ?> record : records) {
+            try {
+                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+                if(voucherOrder.getUserId() == null){
+                    throw new IllegalArgumentException("缺少userId");
+                }
+                int partition = Math.floorMod(voucherOrder.getUserId().hashCode(), partitionExecutors.length);
+                partitions.computeIfAbsent(partition, k -> new ArrayList<>()).add(record);
+            } catch (Exception e) {
+                Map<Object, Object> value = new HashMap<>(record.getValue());
+                value.put("sourceId", record.getId().getValue());
+                value.put("error", String.valueOf(e.getMessage()));
+                log.error("订单消息无法解析，转入死信队列：" + value, e);
+                try {
+                    addDeadLetter(value);
+                    malformed.add(record.getId());
+                } catch (Exception ex) {
+                    //写死信失败时不ACK，留在pending中由重试流程转入死信队列
+                    log.error("写入死信队列失败：" + record.getId(), ex);
+                }
+            }
+        }
+        if(!malformed.isEmpty()){
+            template.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, malformed.toArray(new RecordId[0]));
+            orderMetrics.deadLettered(malformed.size());
+        }
+        //2、提交到各分区线程，分区内按消息顺序串行处理
+        List<Future<List<RecordId>>> futures = new ArrayList<>(partitions.size());
+        for (Map.Entry<Integer, List<MapRecord<String, ?, ?>>> entry : partitions.entrySet()) {
+            List<MapRecord<String, ?, ?>> partitionRecords = entry.getValue();
+            futures.add(partitionExecutors[entry.getKey()].submit(() -> handlePartition(partitionRecords)));
+        }
+        //3、等待所有分区处理完成，汇总成功的消息id
+        List<RecordId> acked = new ArrayList<>(records.size());
+        for (Future<List<RecordId>> future : futures) {
+            acked.addAll(future.get());
+        }
+        //4、一次性ACK确认，从pending中移除
+        if(!acked.isEmpty()){
+            template.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, acked.toArray(new RecordId[0]));
+            orderMetrics.acked(acked.size());
+        }
+        return acked.size() + malformed.size() == records.size();
+    }
+
+    private List<RecordId> handlePartition(List<MapRecord<String, ?, ?>> records) {
+        //下单消息和撤销消息分开处理；撤销的订单在发送消息前已确认存在于数据库，两者之间不需要保证顺序
+        List<MapRecord<String, ?, ?>> orders = new ArrayList<>(records.size());
+        List<MapRecord<String, ?, ?>> reversals = new ArrayList<>();
+        for (MapRecord<String, ?, ?> record : records) {
+            (isReversal(record.getValue()) ? reversals : orders).add(record);
+        }
+        List<RecordId> success = new ArrayList<>(records.size());
+        if(!orders.isEmpty()){
+            success.addAll(handleOrders(orders));
+        }
+        if(!reversals.isEmpty()){
+            success.addAll(handleReversals(reversals));
+        }
+        return success;
+    }
 
-        private void handleVoucherOrder(VoucherOrder voucherOrder) {
-            //此时由于是异步线程开启的任务，获取不到localHolder
-            Long userId = voucherOrder.getUserId();
+    private static boolean isReversal(Map<?, ?> value){
+        return SECKILL_REVERSE_TYPE.equals(value.get("type"));
+    }
 
-            //4.1创建锁对象
-            RedisLock redisLock = new RedisLock("order:" + userId, template);
-            //4.2获取锁，设置超时时间
-            boolean lockFlag = redisLock.tryLock(5);
-            //4.3判断是否获取成功
-            if(!lockFlag){
-                log.error("禁止重复下单");
+    private List<RecordId> handleOrders(List<MapRecord<String, ?, ?>> records) {
+        //1、优先批量写入：一次多行insert，按优惠券聚合扣减库存，同一事务内完成
+        try {
+            List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+            List<RecordId> ids = new ArrayList<>(records.size());
+            for (MapRecord<String, ?, ?> record : records) {
+                voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+                ids.add(record.getId());
             }
-            //4.4处理异常并释放锁
+            long begin = System.nanoTime();
+            List<Long> rejected = proxy.createVoucherOrders(voucherOrders);
+            orderMetrics.recordPersist(System.nanoTime() - begin);
+            saveOrderStatus(voucherOrders, rejected);
+            return ids;
+        } catch (Exception e) {
+            log.error("批量下单异常，改为逐条处理", e);
+        }
+        //2、批量失败时逐条处理，隔离出错的消息
+        List<RecordId> success = new ArrayList<>(records.size());
+        for (MapRecord<String, ?, ?> record : records) {
             try {
-                proxy.createVoucherOrder(voucherOrder);
-            } finally {
-                //释放锁
-                redisLock.unLock();
+                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+                log.debug("voucher:" + voucherOrder);
+                boolean persisted = proxy.createVoucherOrder(voucherOrder);
+                saveOrderStatus(Collections.singletonList(voucherOrder),
+                        persisted ? Collections.emptyList() : Collections.singletonList(voucherOrder.getId()));
+                success.add(record.getId());
+            } catch (Exception e) {
+                //处理失败的消息不ACK，留在pending中等待重试
+                log.error("订单处理异常，消息id：" + record.getId(), e);
+                orderMetrics.failed(1);
             }
         }
+        return success;
+    }
 
-        private void handlePendingList() {
-            while (true){
-                try {
-                    //1、从pending中获取信息；等同XREADGROUP语句
-                    List<MapRecord<String, Object, Object>> read = template.opsForStream().read(
-                            Consumer.from("evaDepart", "c1"),
-                            StreamReadOptions.empty().count(1),//查询最大数量
-                            StreamOffset.create(queueName, ReadOffset.from("0"))//指定队列 和 起始id
-                    );
-                    //2、判断消息是否获取成功
-                    if(read == null || read.isEmpty()){
-                        break;
+    private List<RecordId> handleReversals(List<MapRecord<String, ?, ?>> records) {
+        List<VoucherOrder> reversals = new ArrayList<>(records.size());
+        for (MapRecord<String, ?, ?> record : records) {
+            reversals.add(toReversal(record.getValue()));
+        }
+        //1、优先在一个事务内批量处理
+        try {
+            proxy.reverseOrders(reversals);
+            return records.stream().map(MapRecord::getId).collect(Collectors.toList());
+        } catch (Exception e) {
+            log.error("批量撤销订单异常，改为逐条处理", e);
+        }
+        //2、批量失败时逐条处理，失败的消息留在pending中等待重试
+        List<RecordId> success = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            try {
+                proxy.reverseOrders(Collections.singletonList(reversals.get(i)));
+                success.add(records.get(i).getId());
+            } catch (Exception e) {
+                log.error("撤销订单异常，消息id：" + records.get(i).getId(), e);
+                orderMetrics.failed(1);
+            }
+        }
+        return success;
+    }
+
+    //撤销消息：status为目标状态，time为撤销时的毫秒时间戳
+    private static VoucherOrder toReversal(Map<?, ?> value){
+        VoucherOrder reversal = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+        LocalDateTime time = LocalDateTime.ofInstant(
+                Instant.ofEpochMilli(Long.parseLong(value.get("time").toString())), ZoneId.systemDefault());
+        reversal.setUpdateTime(time);
+        if(reversal.getStatus() == VOUCHER_ORDER_REFUNDED){
+            reversal.setRefundTime(time);
+        }
+        return reversal;
+    }
+
+    //事务提交后通过pipeline写入订单状态，供客户端轮询；值为"状态:用户id"，状态写入失败不影响订单
+    private void saveOrderStatus(List<VoucherOrder> voucherOrders, List<Long> rejected){
+        try {
+            RedisSerializer<String> serializer = template.getStringSerializer();
+            long ttl = TimeUnit.MINUTES.toSeconds(SECKILL_ORDER_STATUS_TTL);
+            template.executePipelined((RedisCallback<Object>) connection -> {
+                for (VoucherOrder voucherOrder : voucherOrders) {
+                    int status = rejected.contains(voucherOrder.getId()) ? SECKILL_ORDER_FAIL : SECKILL_ORDER_SUCCESS;
+                    connection.stringCommands().setEx(serializer.serialize(SECKILL_ORDER_STATUS_KEY + voucherOrder.getId()),
+                            ttl, serializer.serialize(status + ":" + voucherOrder.getUserId()));
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("订单状态写入失败", e);
+        }
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        //只查询redis，不访问数据库；没有记录代表订单仍在队列中处理
+        String value = template.opsForValue().get(SECKILL_ORDER_STATUS_KEY + orderId);
+        if(value == null){
+            return Result.ok(SECKILL_ORDER_PENDING);
+        }
+        String[] status = value.split(":");
+        if(!status[1].equals(UserHolder.getUser().getId().toString())){
+            return Result.fail("订单不存在");
+        }
+        return Result.ok(Integer.valueOf(status[0]));
+    }
+
+    //定时恢复pending中的消息：XPENDING扫描所有消费者，空闲超过阈值的消息XCLAIM到恢复消费者重试，
+    //投递次数达到上限的消息转入死信队列，避免单条异常消息阻塞正常订单
+    //消息队列最低支持redis 5.0，因此不使用6.2的XAUTOCLAIM，与stream-orders的裁剪(SeckillStreamRetention)一致
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order.recover-interval-millis:5000}")
+    public void recoverPendingOrders(){
+        if(!running){
+            return;
+        }
+        try {
+            String start = "-";
+            for (int page = 0; page < MAX_RECOVER_PAGES; page++) {
+                //1、分页查询pending列表，包含消费者、空闲时间和投递次数
+                PendingMessages pending = template.opsForStream().pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP,
+                        Range.rightUnbounded(Range.Bound.inclusive(start)), batchSize);
+                List<String> retryIds = new ArrayList<>();
+                List<PendingMessage> deadLetters = new ArrayList<>();
+                for (PendingMessage message : pending) {
+                    if(message.getIdAsString().equals(start)
+                            || message.getElapsedTimeSinceLastDelivery().toMillis() < recoverMinIdleMillis){
+                        continue;
+                    }
+                    if(message.getTotalDeliveryCount() >= maxDeliveries){
+                        deadLetters.add(message);
+                    }else {
+                        retryIds.add(message.getIdAsString());
                     }
-                    //3、解析消息的订单信息
-                    //String存储的是消息的id
-                    MapRecord<String, Object, Object> entries = read.get(0);
-                    Map<Object, Object> value = entries.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(),true);
-                    //4、获取成功进行下单
-                    handleVoucherOrder(voucherOrder);
-                    //5、在读取消息后进行ACK确认，从queue移除
-                    template.opsForStream().acknowledge(queueName,"evaDepart",entries.getId());
-                } catch (Exception e) {
-                    log.error("pending订单异常",e);
                 }
+                //2、超过重试次数的认领后转入死信队列
+                moveToDeadLetter(deadLetters);
+                //3、其余的认领到恢复消费者并重新处理；minIdle保证多个节点不会重复认领
+                if(!retryIds.isEmpty()){
+                    List<MapRecord<String, String, String>> claimed = claim(retryIds);
+                    if(!claimed.isEmpty()){
+                        orderMetrics.retried(claimed.size());
+                        handleRecords(claimed);
+                    }
+                }
+                if(pending.size() < batchSize){
+                    break;
+                }
+                start = pending.get(pending.size() - 1).getIdAsString();
+            }
+        } catch (Exception e) {
+            log.error("pending订单恢复异常", e);
+        }
+    }
+
+    private List<MapRecord<String, String, String>> claim(List<String> ids){
+        RedisSerializer<String> serializer = template.getStringSerializer();
+        List<ByteRecord> records = template.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(serializer.serialize(SECKILL_ORDER_STREAM), SECKILL_ORDER_GROUP,
+                        consumerPrefix + "-recovery",
+                        RedisStreamCommands.XClaimOptions.minIdleMs(recoverMinIdleMillis).ids(ids.toArray(new String[0]))));
+        if(records == null){
+            return Collections.emptyList();
+        }
+        return records.stream()
+                .map(record -> record.<String, String, String>deserialize(serializer, serializer, serializer))
+                .collect(Collectors.toList());
+    }
+
+    //转入死信队列前先XCLAIM到恢复消费者，minIdle保证多个节点同时扫描时只有一个节点认领成功，只处理本节点认领到的消息
+    private void moveToDeadLetter(List<PendingMessage> messages){
+        if(messages.isEmpty()){
+            return;
+        }
+        Map<String, PendingMessage> byId = new HashMap<>();
+        for (PendingMessage message : messages) {
+            byId.put(message.getIdAsString(), message);
+        }
+        List<RecordId> claimed = claimJustId(new ArrayList<>(byId.keySet()));
+        if(claimed.isEmpty()){
+            return;
+        }
+        for (RecordId id : claimed) {
+            PendingMessage message = byId.get(id.getValue());
+            long deliveryCount = message == null ? maxDeliveries : message.getTotalDeliveryCount();
+            //1、读取原消息内容，写入死信队列并记录原id和投递次数；原消息已被裁剪时只做ACK
+            List<MapRecord<String, Object, Object>> origin = template.opsForStream()
+                    .range(SECKILL_ORDER_STREAM, Range.closed(id.getValue(), id.getValue()));
+            Map<Object, Object> value = new HashMap<>();
+            if(origin != null && !origin.isEmpty()){
+                value.putAll(origin.get(0).getValue());
             }
+            value.put("sourceId", id.getValue());
+            value.put("deliveryCount", String.valueOf(deliveryCount));
+            addDeadLetter(value);
+            log.error("订单消息重试" + deliveryCount + "次仍失败，转入死信队列：" + value);
         }
+        //2、ACK原消息，不再重试
+        template.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, claimed.toArray(new RecordId[0]));
+        orderMetrics.deadLettered(claimed.size());
     }
 
-    //加载lua脚本
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("scekill.lua"));//设置加载lua脚本位置
-        SECKILL_SCRIPT.setResultType(Long.class);//设置返回类型
+    //写入死信队列(按dlq-max-len限制长度)；订单不会再被处理，告知轮询的客户端下单失败，撤销消息不影响下单状态
+    private void addDeadLetter(Map<Object, Object> value){
+        RedisSerializer<String> serializer = template.getStringSerializer();
+        Map<byte[], byte[]> body = new HashMap<>();
+        value.forEach((k, v) -> body.put(serializer.serialize(String.valueOf(k)), serializer.serialize(String.valueOf(v))));
+        template.execute((RedisCallback<RecordId>) connection -> connection.streamCommands().xAdd(
+                StreamRecords.newRecord().in(serializer.serialize(SECKILL_ORDER_DLQ_STREAM)).ofMap(body),
+                dlqMaxLen > 0 ? RedisStreamCommands.XAddOptions.maxlen(dlqMaxLen) : RedisStreamCommands.XAddOptions.none()));
+        if(!value.containsKey("id") || isReversal(value)){
+            return;
+        }
+        try {
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+            if(voucherOrder.getId() != null){
+                saveOrderStatus(Collections.singletonList(voucherOrder), Collections.singletonList(voucherOrder.getId()));
+            }
+        } catch (Exception e) {
+            log.error("死信订单无法解析，未记录下单状态：" + value, e);
+        }
+    }
+
+    //逐条认领，只返回id不返回消息内容(JUSTID)，已被裁剪的消息也能认领后ACK；lettuce不支持JUSTID，通过claim.lua执行
+    private List<RecordId> claimJustId(List<String> ids){
+        List<RecordId> claimed = new ArrayList<>(ids.size());
+        List<String> keys = Collections.singletonList(SECKILL_ORDER_STREAM);
+        for (String id : ids) {
+            Long result = scriptRegistry.execute("claim", keys, SECKILL_ORDER_GROUP, consumerPrefix + "-recovery",
+                    String.valueOf(recoverMinIdleMillis), id);
+            if(result != null && result > 0){
+                claimed.add(RecordId.of(id));
+            }
+        }
+        return claimed;
     }
 
+    //lua脚本由注册中心启动时预加载，通过EVALSHA执行
+    @Resource
+    private RedisScriptRegistry scriptRegistry;
+
+    //注入自己的代理对象，消费者线程在启动时即可使用，不依赖seckillVoucher先被调用
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
     @Override
     public Result seckillVoucher(Long voucherId) {
+        long now = System.currentTimeMillis();
+        //0、本地缓存的秒杀时间窗口，未开始、已结束的直接拒绝，不访问redis和数据库
+        if(voucherWarmer.notStarted(voucherId, now)){
+            return Result.fail("秒杀未开始");
+        }
+        if(voucherWarmer.ended(voucherId, now)){
+            return Result.fail("秒杀已经结束");
+        }
+        //0.1本地已标记售罄的直接拒绝，不访问redis
+        if(soldOutRegistry.isSoldOut(voucherId)){
+            return Result.fail("库存不足");
+        }
+        //0.2本地处于限流窗口内的直接拒绝
+        if(admissionFilter.isBusy(voucherId)){
+            return Result.fail("系统繁忙，请稍后重试");
+        }
         Long userId = UserHolder.getUser().getId();
         long orderId = redisIdWork.nextId("order");
+        //库存分片数和用户所在分片，脚本只访问用户所在分片的库存和下单集合
+        int shards = seckillStockShards.shardsOf(voucherId);
+        int homeShard = SeckillStockShards.homeShard(userId, shards);
+        List<String> keys = Arrays.asList(
+                SeckillStockShards.stockKey(voucherId, homeShard, shards),
+                SeckillStockShards.orderKey(voucherId, homeShard, shards),
+                SECKILL_VOUCHER_KEY + voucherId, SECKILL_BUCKET_KEY + voucherId,
+                SECKILL_ORDER_STREAM, SECKILL_ORDER_EXPIRE_KEY);
         //1、执行脚本；脚本内完成了对消息队列的信息发送
-        Long result = template.execute(
-                SECKILL_SCRIPT,//参数1：lua脚本
-                Collections.emptyList(),//参数2：key，没有Key用空集合代替
-                voucherId.toString(), userId.toString(),String.valueOf(orderId)//参数3：value值集合
-        );
+        Long result;
+        do {
+            result = scriptRegistry.execute(
+                    "scekill",//参数1：lua脚本名，即scekill.lua
+                    keys,//参数2：脚本访问的key
+                    voucherId.toString(), userId.toString(),String.valueOf(orderId),//参数3：value值集合
+                    String.valueOf(shards),
+                    String.valueOf(now), String.valueOf(admissionFilter.getRateMultiple()),
+                    String.valueOf(streamMaxLen), String.valueOf(expireTimeoutMillis > 0 ? now + expireTimeoutMillis : 0)
+            );
+            //1.1用户所在分片售空时从其他分片借入库存后重试，所有分片都售空才返回库存不足
+        } while (result.intValue() == 1 && shards > 1 && seckillStockShards.borrow(voucherId, homeShard, shards) > 0);
         //2、根据lua脚本判断是否为0，非0不能购买
         if(result.intValue() != 0){
-            return Result.fail(result.intValue() == 1 ? "库存不足" : "不能多次下单");
+            if(result.intValue() == 1){
+                soldOutRegistry.markSoldOut(voucherId);
+                return Result.fail("库存不足");
+            }
+            if(result.intValue() == 4){
+                return Result.fail("不在秒杀时间内");
+            }
+            if(result.intValue() == 3){
+                admissionFilter.markBusy(voucherId);
+                return Result.fail("系统繁忙，请稍后重试");
+            }
+            return Result.fail("不能多次下单");
         }
 
-        //获取代理对象供使用
-        proxy= (IVoucherOrderService)AopContext.currentProxy();
-
         //3、在程序开启时，开启异步线程读取消息队列内容即可
         return Result.ok(orderId);
     }
@@ -250,45 +683,141 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //    }
 
 
-    @Transactional//对于操作2张以上表添加事务；由于此操作不涉及更新数据，所以需要用悲观锁
-    public void createVoucherOrder(VoucherOrder voucherOrder){
-        //添加一人一单功能
-        //1、获取到用户的Id
-//        Long userId = UserHolder.getUser().getId();
-        Long userId = voucherOrder.getUserId();
-        //2、根据用户Id和voucherId查询订单
-        Integer count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-
-        //3、判断是否存在
-        if(count > 0){
-            log.error("已经购买过了");
-//            return Result.fail("已经购买过了!");
+    @Transactional//对于操作2张以上表添加事务；返回订单是否已保存
+    public boolean createVoucherOrder(VoucherOrder voucherOrder){
+        //添加一人一单功能：依赖(user_id, voucher_id)唯一索引，insert ignore重复订单时不插入，无需加锁和count查询
+        //1、保存订单，重复消费的消息影响行数为0
+        int inserted = getBaseMapper().insertIgnoreBatch(Collections.singletonList(voucherOrder));
+        if(inserted == 0){
+            log.error("已经购买过了，订单id：" + voucherOrder.getId());
+            //同一订单重复消费时订单已存在，视为成功
+            return getById(voucherOrder.getId()) != null;
         }
 
-        //3.1库存足够扣减库存；等同sql语句 update from .. set stock = stock -1 where id = ? and stock > 0
+        //2、库存足够扣减库存；等同sql语句 update from .. set stock = stock -1 where id = ? and stock > 0
         boolean flag = seckillVoucherService.update().setSql("stock = stock -1")
                 .eq("voucher_id", voucherOrder.getVoucherId())
                 .gt("stock",0)//优化1：乐观锁优化，在库存足够时判断stock是否>0；但仍存在有库存少卖的问题
                 .update();
         if(!flag){
-            log.error("库存不足");
-//            return Result.fail("库存不足");
+            //redis已扣减库存，数据库库存不足说明撤销订单归还的库存还在消息队列中；回滚订单，消息留在pending中稍后重试
+            throw new IllegalStateException("数据库库存不足，订单id：" + voucherOrder.getId());
+        }
+        return true;
+    }
+
+    @Override
+    @Transactional//批量下单：按优惠券分组insert ignore，按实际插入行数扣减库存；返回因一人一单被拒绝的订单id
+    public List<Long> createVoucherOrders(List<VoucherOrder> voucherOrders){
+        List<Long> rejected = new ArrayList<>();
+        //1、按优惠券分组，每组一条多行insert ignore语句，影响行数即为该优惠券新增的订单数
+        Map<Long, List<VoucherOrder>> byVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+            List<VoucherOrder> orders = entry.getValue();
+            int inserted = getBaseMapper().insertIgnoreBatch(orders);
+            if(inserted < orders.size()){
+                //有订单被忽略时查询哪些订单id已存在：已存在的是重复消费，不存在的是同一用户的其他订单
+                List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+                Set<Long> existed = query().select("id").in("id", ids).list().stream()
+                        .map(VoucherOrder::getId).collect(Collectors.toSet());
+                ids.stream().filter(id -> !existed.contains(id)).forEach(rejected::add);
+                log.error("已经购买过了，忽略重复订单数：" + (orders.size() - inserted));
+            }
+            if(inserted == 0){
+                continue;
+            }
+            //2、按实际插入数扣减库存；等同sql语句 update ... set stock = stock - k where voucher_id = ? and stock >= k
+            boolean flag = seckillVoucherService.update().setSql("stock = stock - " + inserted)
+                    .eq("voucher_id", entry.getKey())
+                    .ge("stock", inserted)
+                    .update();
+            if(!flag){
+                //不能提交没有扣减库存的订单：抛出异常回滚整批，由调用方改为逐条处理
+                throw new IllegalStateException("数据库库存不足，优惠券id：" + entry.getKey() + "，订单数：" + inserted);
+            }
+        }
+        return rejected;
+    }
+
+    @Override
+    @Transactional//超时取消：锁定仍未支付的订单改为已取消，按优惠券归还数据库库存；返回本次实际取消的订单
+    public List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds){
+        //1、for update锁定未支付订单，多节点同时取消同一订单时只有一个节点能查到并取消
+        List<VoucherOrder> orders = query().in("id", orderIds).eq("status", VOUCHER_ORDER_UNPAID)
+                .last("for update").list();
+        if(orders.isEmpty()){
+            return orders;
         }
+        //2、批量修改状态
+        List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        update().set("status", VOUCHER_ORDER_CANCELLED).in("id", ids).update();
+        //3、按优惠券归还库存；等同sql语句 update ... set stock = stock + k where voucher_id = ?
+        Map<Long, Long> counts = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        counts.forEach((voucherId, count) -> seckillVoucherService.update().setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update());
+        return orders;
+    }
+
+    @Override
+    public Result cancelOrder(Long orderId) {
+        return reverseOrder(orderId, VOUCHER_ORDER_UNPAID, VOUCHER_ORDER_CANCELLED);
+    }
 
-        //4、创建订单
-        //此时的异步操作不需要创建订单，也不需要返回值了
-//        VoucherOrder voucherOrder = new VoucherOrder();
-//        //4.1订单ID，使用id生成器
-//        long orderId = redisIdWork.nextId("order");
-//        voucherOrder.setId(orderId);
-//        //4.2用户Id
-//        voucherOrder.setUserId(userId);
-//        //4.3代金券Id
-//        voucherOrder.setVoucherId(voucherOrder);
-        //4.4保存至数据库中
-        save(voucherOrder);
-
-        //5.返回订单Id
-//        return Result.ok(orderId);
+    @Override
+    public Result refundOrder(Long orderId) {
+        return reverseOrder(orderId, VOUCHER_ORDER_PAID, VOUCHER_ORDER_REFUNDED);
+    }
+
+    //取消和退款：脚本归还redis库存并发送撤销消息，和下单一样由消费者异步修改数据库，不需要加锁
+    private Result reverseOrder(Long orderId, int expectedStatus, int targetStatus){
+        //1、校验订单归属和状态；订单还在消息队列中未写入数据库时不能撤销
+        VoucherOrder voucherOrder = getById(orderId);
+        Long userId = UserHolder.getUser().getId();
+        if(voucherOrder == null || !voucherOrder.getUserId().equals(userId)){
+            return Result.fail("订单不存在");
+        }
+        if(voucherOrder.getStatus() != expectedStatus){
+            return Result.fail(expectedStatus == VOUCHER_ORDER_UNPAID ? "订单不是未支付状态" : "订单不是已支付状态");
+        }
+        //2、执行脚本：归还用户所在分片的库存，发送撤销消息；同一订单只会归还一次
+        Long voucherId = voucherOrder.getVoucherId();
+        int shards = seckillStockShards.shardsOf(voucherId);
+        int homeShard = SeckillStockShards.homeShard(userId, shards);
+        Long result = scriptRegistry.execute("reverse",
+                Arrays.asList(SeckillStockShards.stockKey(voucherId, homeShard, shards), SECKILL_REVERSED_KEY + voucherId,
+                        SECKILL_VOUCHER_KEY + voucherId),
+                orderId.toString(), userId.toString(), voucherId.toString(), String.valueOf(targetStatus),
+                String.valueOf(System.currentTimeMillis()), String.valueOf(streamMaxLen));
+        if(result.intValue() != 0){
+            return Result.fail("订单已取消或退款");
+        }
+        //3、库存已归还，清除本地售罄标记
+        soldOutRegistry.clear(voucherId);
+        return Result.ok();
+    }
+
+    @Override
+    @Transactional//消费撤销消息：只修改仍处于预期状态的订单，按实际修改的订单数归还数据库库存
+    public void reverseOrders(List<VoucherOrder> reversals){
+        Map<Long, Integer> counts = new HashMap<>();
+        for (VoucherOrder reversal : reversals) {
+            int expectedStatus = reversal.getStatus() == VOUCHER_ORDER_REFUNDED ? VOUCHER_ORDER_PAID : VOUCHER_ORDER_UNPAID;
+            //超时取消等其他途径已修改过状态的订单不再修改，库存已由对应途径归还
+            boolean updated = update().set("status", reversal.getStatus())
+                    .set(reversal.getRefundTime() != null, "refund_time", reversal.getRefundTime())
+                    .set("update_time", reversal.getUpdateTime())
+                    .eq("id", reversal.getId())
+                    .eq("status", expectedStatus)
+                    .update();
+            if(updated){
+                counts.merge(reversal.getVoucherId(), 1, Integer::sum);
+            }
+        }
+        counts.forEach((voucherId, count) -> seckillVoucherService.update().setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update());
     }
 }
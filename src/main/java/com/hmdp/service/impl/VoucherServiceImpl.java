@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import com.alibaba.fastjson.JSON;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
@@ -7,13 +8,23 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillVoucherWarmer;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
+import java.io.Serializable;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_VOUCHER_LIST_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_VOUCHER_LIST_TTL;
 
 /**
  * <p>
@@ -32,14 +43,88 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate template;
 
+    @Resource
+    private SeckillVoucherWarmer voucherWarmer;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    //店铺优惠券列表：列表本身缓存在redis中，新增、修改、删除优惠券和秒杀券淘汰时删除；秒杀库存每次读取时从seckill:stock:*一次MGET覆盖
+    //秒杀期间店铺页不再查询数据库，库存仍然是实时的
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        //1、查询缓存，未命中时查询数据库并写入缓存(空列表也缓存，防止穿透)
+        String key = CACHE_VOUCHER_LIST_KEY + shopId;
+        String json = template.opsForValue().get(key);
+        List<Voucher> vouchers;
+        if(json != null){
+            vouchers = JSON.parseArray(json, Voucher.class);
+        }else {
+            vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+            template.opsForValue().set(key, JSON.toJSONString(vouchers), CACHE_VOUCHER_LIST_TTL, TimeUnit.MINUTES);
+        }
+        //2、用redis中的实时库存覆盖缓存中的库存
+        overlayStock(vouchers);
         // 返回结果
         return Result.ok(vouchers);
     }
 
+    //所有秒杀券的库存一次MGET读取；未预热或已淘汰的沿用数据库库存
+    private void overlayStock(List<Voucher> vouchers){
+        List<Long> voucherIds = vouchers.stream()
+                .filter(voucher -> voucher.getStock() != null)
+                .map(Voucher::getId)
+                .collect(Collectors.toList());
+        if(voucherIds.isEmpty()){
+            return;
+        }
+        Map<Long, Integer> stocks = seckillStockShards.stockOf(voucherIds);
+        for (Voucher voucher : vouchers) {
+            Integer stock = stocks.get(voucher.getId());
+            if(stock != null){
+                voucher.setStock(stock);
+            }
+        }
+    }
+
+    //新增优惠券(普通券和秒杀券)时删除店铺优惠券列表缓存；在事务中时提交后再删除，避免删除后、提交前的查询把旧列表重新写入缓存
+    @Override
+    public boolean save(Voucher voucher) {
+        boolean saved = super.save(voucher);
+        evictListCache(voucher.getShopId());
+        return saved;
+    }
+
+    //修改优惠券后删除店铺优惠券列表缓存；只修改部分字段时按id查询所属店铺
+    @Override
+    public boolean updateById(Voucher voucher) {
+        Long shopId = voucher.getShopId();
+        if(shopId == null){
+            Voucher origin = getById(voucher.getId());
+            shopId = origin == null ? null : origin.getShopId();
+        }
+        boolean updated = super.updateById(voucher);
+        evictListCache(shopId);
+        return updated;
+    }
+
+    //删除优惠券后删除店铺优惠券列表缓存
+    @Override
+    public boolean removeById(Serializable id) {
+        Voucher voucher = getById(id);
+        boolean removed = super.removeById(id);
+        if(voucher != null){
+            evictListCache(voucher.getShopId());
+        }
+        return removed;
+    }
+
+    private void evictListCache(Long shopId){
+        if(shopId != null){
+            afterCommit(() -> template.delete(CACHE_VOUCHER_LIST_KEY + shopId));
+        }
+    }
+
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
@@ -49,13 +134,28 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
         seckillVoucher.setStock(voucher.getStock());
+        seckillVoucher.setInitStock(voucher.getStock());
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
-        //将库存添加到缓存中
-        template.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(),voucher.getStock().toString());
+        //即将开始的秒杀券立即预热库存和时间窗口到缓存中，其余的由定时任务在开始前预热
+        //提交后再预热，事务回滚时不会在redis中留下可以下单的秒杀券
+        afterCommit(() -> voucherWarmer.warmIfDue(seckillVoucher));
+    }
 
+    //在事务中时注册到提交之后执行，不在事务中时立即执行
+    private void afterCommit(Runnable action){
+        if(TransactionSynchronizationManager.isSynchronizationActive()){
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        }else {
+            action.run();
+        }
     }
 
 }
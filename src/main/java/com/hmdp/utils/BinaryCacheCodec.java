@@ -0,0 +1,426 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * @author cgJavaAfter
+ * @date 2023-03-18 16:40
+ */
+//二进制编码：按实体类的字段顺序写入字段值，不写字段名；整数用zigzag变长编码，时间写成秒+纳秒
+//格式：[版本1][标志位][字段签名4字节][压缩前长度(压缩时)][内容]，内容：[过期时间、重建耗时(逻辑过期时)][非空字段位图][非空字段值]
+//字段签名是字段名和类型的hash，实体类字段变化后旧数据签名不一致，按缓存未命中处理；超过compress-threshold的内容用deflate压缩
+//支持字段类型为基本类型及包装类、String、LocalDateTime的类(如Shop、Blog、UserDTO)，类需要无参构造器
+@Slf4j
+@Component
+public class BinaryCacheCodec implements CacheCodec {
+    private static final byte VERSION = 1;
+    private static final int FLAG_COMPRESSED = 1;
+    private static final int FLAG_EXPIRING = 2;
+    private static final int HEADER_LENGTH = 6;
+
+    private static final int LONG = 0, INT = 1, SHORT = 2, BYTE = 3, DOUBLE = 4, FLOAT = 5, BOOLEAN = 6, STRING = 7, DATE_TIME = 8;
+
+    //超过此长度(字节)的内容压缩，0代表不压缩
+    @Value("${hmdp.cache.codec-compress-threshold:1024}")
+    private int compressThreshold;
+
+    //类 -> 字段结构，不支持的类为empty
+    private final Map<Class<?>, Optional<Schema>> schemas = new ConcurrentHashMap<>();
+
+    @Override
+    public String name() {
+        return "binary";
+    }
+
+    @Override
+    public byte version() {
+        return VERSION;
+    }
+
+    @Override
+    public boolean supports(Class<?> type) {
+        return schemaOf(type) != null;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return encode(value, null);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return type.cast(decode(bytes, type, null));
+    }
+
+    @Override
+    public byte[] encodeExpiring(RedisData redisData) {
+        return encode(redisData.getData(), redisData);
+    }
+
+    @Override
+    public RedisData decodeExpiring(byte[] bytes, Class<?> dataType) {
+        RedisData redisData = new RedisData();
+        Object data = decode(bytes, dataType, redisData);
+        if(data == null){
+            return null;
+        }
+        redisData.setData(data);
+        return redisData;
+    }
+
+    private byte[] encode(Object value, RedisData expiring){
+        Schema schema = schemaOf(value.getClass());
+        if(schema == null){
+            throw new IllegalArgumentException("二进制编码不支持类型：" + value.getClass().getName());
+        }
+        //1、内容：过期信息、非空字段位图、字段值
+        Buffer body = new Buffer(64);
+        if(expiring != null){
+            body.writeLong(expiring.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+            body.writeLong(expiring.getComputeMillis() == null ? 0 : expiring.getComputeMillis());
+        }
+        Object[] values = new Object[schema.fields.length];
+        byte[] bitmap = new byte[(schema.fields.length + 7) / 8];
+        try {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = schema.fields[i].get(value);
+                if(values[i] != null){
+                    bitmap[i >>> 3] |= 1 << (i & 7);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        body.writeBytes(bitmap, bitmap.length);
+        for (int i = 0; i < values.length; i++) {
+            if(values[i] != null){
+                writeValue(body, schema.kinds[i], values[i]);
+            }
+        }
+        //2、头部，内容超过阈值时压缩
+        int flags = expiring != null ? FLAG_EXPIRING : 0;
+        byte[] content = body.bytes;
+        int contentLength = body.length;
+        Buffer out = new Buffer(HEADER_LENGTH + contentLength);
+        if(compressThreshold > 0 && contentLength > compressThreshold){
+            byte[] compressed = compress(content, contentLength);
+            if(compressed.length < contentLength){
+                flags |= FLAG_COMPRESSED;
+                writeHeader(out, flags, schema.fingerprint);
+                out.writeVarInt(contentLength);
+                out.writeBytes(compressed, compressed.length);
+                return out.toBytes();
+            }
+        }
+        writeHeader(out, flags, schema.fingerprint);
+        out.writeBytes(content, contentLength);
+        return out.toBytes();
+    }
+
+    private Object decode(byte[] bytes, Class<?> type, RedisData expiring){
+        Schema schema = schemaOf(type);
+        if(schema == null || bytes.length < HEADER_LENGTH || bytes[0] != VERSION){
+            return null;
+        }
+        int flags = bytes[1];
+        int fingerprint = ((bytes[2] & 0xff) << 24) | ((bytes[3] & 0xff) << 16) | ((bytes[4] & 0xff) << 8) | (bytes[5] & 0xff);
+        //字段签名不一致或逻辑过期标志不匹配，按未命中处理
+        if(fingerprint != schema.fingerprint || ((flags & FLAG_EXPIRING) != 0) != (expiring != null)){
+            return null;
+        }
+        Buffer in = new Buffer(bytes, HEADER_LENGTH);
+        try {
+            if((flags & FLAG_COMPRESSED) != 0){
+                int length = in.readVarInt();
+                in = new Buffer(decompress(bytes, in.position, bytes.length - in.position, length), 0);
+            }
+            if(expiring != null){
+                expiring.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(in.readLong()), ZoneId.systemDefault()));
+                expiring.setComputeMillis(in.readLong());
+            }
+            int bitmapStart = in.position;
+            in.position += (schema.fields.length + 7) / 8;
+            Object value = schema.constructor.newInstance();
+            for (int i = 0; i < schema.fields.length; i++) {
+                if((in.bytes[bitmapStart + (i >>> 3)] & (1 << (i & 7))) != 0){
+                    schema.fields[i].set(value, readValue(in, schema.kinds[i]));
+                }
+            }
+            return value;
+        } catch (Exception e) {
+            log.warn("二进制缓存解码失败，按未命中处理：{}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static void writeHeader(Buffer out, int flags, int fingerprint){
+        out.writeByte(VERSION);
+        out.writeByte(flags);
+        out.writeByte(fingerprint >>> 24);
+        out.writeByte(fingerprint >>> 16);
+        out.writeByte(fingerprint >>> 8);
+        out.writeByte(fingerprint);
+    }
+
+    private static void writeValue(Buffer out, int kind, Object value){
+        switch (kind) {
+            case LONG: out.writeLong((Long) value); break;
+            case INT: out.writeLong((Integer) value); break;
+            case SHORT: out.writeLong((Short) value); break;
+            case BYTE: out.writeLong((Byte) value); break;
+            case DOUBLE: out.writeFixed64(Double.doubleToRawLongBits((Double) value)); break;
+            case FLOAT: out.writeFixed64(Float.floatToRawIntBits((Float) value)); break;
+            case BOOLEAN: out.writeByte((Boolean) value ? 1 : 0); break;
+            case STRING:
+                byte[] utf8 = ((String) value).getBytes(StandardCharsets.UTF_8);
+                out.writeVarInt(utf8.length);
+                out.writeBytes(utf8, utf8.length);
+                break;
+            case DATE_TIME:
+                LocalDateTime time = (LocalDateTime) value;
+                out.writeLong(time.toEpochSecond(ZoneOffset.UTC));
+                out.writeVarInt(time.getNano());
+                break;
+            default: throw new IllegalStateException("未知字段类型：" + kind);
+        }
+    }
+
+    private static Object readValue(Buffer in, int kind){
+        switch (kind) {
+            case LONG: return in.readLong();
+            case INT: return (int) in.readLong();
+            case SHORT: return (short) in.readLong();
+            case BYTE: return (byte) in.readLong();
+            case DOUBLE: return Double.longBitsToDouble(in.readFixed64());
+            case FLOAT: return Float.intBitsToFloat((int) in.readFixed64());
+            case BOOLEAN: return in.readByte() != 0;
+            case STRING:
+                int length = in.readVarInt();
+                String value = new String(in.bytes, in.position, length, StandardCharsets.UTF_8);
+                in.position += length;
+                return value;
+            case DATE_TIME:
+                long seconds = in.readLong();
+                return LocalDateTime.ofEpochSecond(seconds, in.readVarInt(), ZoneOffset.UTC);
+            default: throw new IllegalStateException("未知字段类型：" + kind);
+        }
+    }
+
+    private static byte[] compress(byte[] content, int length){
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(content, 0, length);
+            deflater.finish();
+            Buffer out = new Buffer(length);
+            byte[] chunk = new byte[Math.max(64, length / 2)];
+            while (!deflater.finished()){
+                int n = deflater.deflate(chunk);
+                out.writeBytes(chunk, n);
+            }
+            return out.toBytes();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] bytes, int offset, int length, int originalLength) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, offset, length);
+            byte[] out = new byte[originalLength];
+            int n = 0;
+            while (n < originalLength && !inflater.finished()){
+                n += inflater.inflate(out, n, originalLength - n);
+            }
+            return out;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private Schema schemaOf(Class<?> type){
+        return schemas.computeIfAbsent(type, t -> Optional.ofNullable(Schema.of(t))).orElse(null);
+    }
+
+    //类的字段结构：包括父类的非static、非transient字段，按类层次和声明顺序排列
+    private static class Schema {
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final int[] kinds;
+        private final int fingerprint;
+
+        private Schema(Constructor<?> constructor, Field[] fields, int[] kinds, int fingerprint) {
+            this.constructor = constructor;
+            this.fields = fields;
+            this.kinds = kinds;
+            this.fingerprint = fingerprint;
+        }
+
+        static Schema of(Class<?> type){
+            if(type.isInterface() || type.isArray() || type.isPrimitive() || Modifier.isAbstract(type.getModifiers())
+                    || type.getName().startsWith("java.")){
+                return null;
+            }
+            try {
+                Constructor<?> constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+                List<Class<?>> hierarchy = new ArrayList<>();
+                for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                    hierarchy.add(0, c);
+                }
+                List<Field> fields = new ArrayList<>();
+                List<Integer> kinds = new ArrayList<>();
+                StringBuilder signature = new StringBuilder();
+                for (Class<?> c : hierarchy) {
+                    for (Field field : c.getDeclaredFields()) {
+                        int modifiers = field.getModifiers();
+                        if(Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()){
+                            continue;
+                        }
+                        int kind = kindOf(field.getType());
+                        if(kind < 0){
+                            return null;
+                        }
+                        field.setAccessible(true);
+                        fields.add(field);
+                        kinds.add(kind);
+                        signature.append(field.getName()).append(':').append(kind).append(';');
+                    }
+                }
+                return new Schema(constructor, fields.toArray(new Field[0]),
+                        kinds.stream().mapToInt(Integer::intValue).toArray(), MurmurHash.hash32(signature));
+            } catch (NoSuchMethodException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        private static int kindOf(Class<?> type){
+            if(type == Long.class || type == long.class) return LONG;
+            if(type == Integer.class || type == int.class) return INT;
+            if(type == Short.class || type == short.class) return SHORT;
+            if(type == Byte.class || type == byte.class) return BYTE;
+            if(type == Double.class || type == double.class) return DOUBLE;
+            if(type == Float.class || type == float.class) return FLOAT;
+            if(type == Boolean.class || type == boolean.class) return BOOLEAN;
+            if(type == String.class) return STRING;
+            if(type == LocalDateTime.class) return DATE_TIME;
+            return -1;
+        }
+    }
+
+    //可扩容的字节数组，整数使用zigzag + varint编码
+    private static class Buffer {
+        private byte[] bytes;
+        private int length;
+        private int position;
+
+        Buffer(int capacity) {
+            this.bytes = new byte[Math.max(capacity, 16)];
+        }
+
+        Buffer(byte[] bytes, int position) {
+            this.bytes = bytes;
+            this.length = bytes.length;
+            this.position = position;
+        }
+
+        void ensure(int extra){
+            if(length + extra > bytes.length){
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+
+        void writeByte(int b){
+            ensure(1);
+            bytes[length++] = (byte) b;
+        }
+
+        void writeBytes(byte[] src, int n){
+            ensure(n);
+            System.arraycopy(src, 0, bytes, length, n);
+            length += n;
+        }
+
+        void writeVarInt(int value){
+            writeVarLong(value & 0xffffffffL);
+        }
+
+        void writeLong(long value){
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void writeVarLong(long value){
+            ensure(10);
+            while ((value & ~0x7FL) != 0){
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void writeFixed64(long value){
+            ensure(8);
+            for (int i = 0; i < 8; i++) {
+                bytes[length++] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        byte readByte(){
+            return bytes[position++];
+        }
+
+        int readVarInt(){
+            return (int) readVarLong();
+        }
+
+        long readLong(){
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long readVarLong(){
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = bytes[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if((b & 0x80) == 0){
+                    return value;
+                }
+            }
+            throw new IllegalStateException("varint格式错误");
+        }
+
+        long readFixed64(){
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value |= (long) (bytes[position++] & 0xff) << (i * 8);
+            }
+            return value;
+        }
+
+        byte[] toBytes(){
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+}
@@ -1,24 +1,54 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.thread.NamedThreadFactory;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.alibaba.fastjson.JSON;
 import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
-import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
-import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOOM_CHANNEL;
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.CACHE_LOADED_CHANNEL;
+import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
+import static com.hmdp.utils.RedisConstants.LOCK_CACHE_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_SHOP_TTL;
 
 /**
  * @author cgJavaAfter
@@ -28,95 +58,443 @@ import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
 @Slf4j
 @Component
 //基于stringRedisTemplate封装的缓存工具类
-public class CacheClient {
+//queryWithPassThrough在redis前增加本地一级缓存：保存反序列化后的对象，按容量(LRU)和TTL淘汰，命中时不访问redis也不解析json
+//修改数据后调用delete删除redis缓存，并通过发布订阅通知所有节点删除本地缓存；广播丢失时本地缓存最多保留local-ttl-millis
+//按key前缀注册的布隆过滤器保存所有存在的id，queryWithPassThrough查询前先判断，判断不存在的id不访问redis和数据库，也不写入空值；
+//误判为存在的id仍按原来的方式在数据库查不到时缓存空值(CACHE_NULL_TTL)，防止这部分id重复访问数据库
+//布隆过滤器定时从数据库重建，新增数据时调用addToBloomFilter并广播给所有节点
+public class CacheClient implements MessageListener {
     @Resource
     private StringRedisTemplate template;
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    //缓存重建线程池，队列有界，满了之后放弃刷新
+    private static final ExecutorService CACHE_REBUILD_EXECUTOR = new ThreadPoolExecutor(10, 10,
+            0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1000), new NamedThreadFactory("cache-rebuild-", true));
+
+    //提前刷新系数，越大越早刷新，0代表过期后才刷新
+    @Value("${hmdp.cache.refresh-beta:1.0}")
+    private double refreshBeta;
+
+    //本节点正在重建的key
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    @Resource
+    private List<CacheCodec> codecs;
+
+    @Resource
+    private JsonCacheCodec jsonCodec;
+
+    //写入缓存使用的编码：json或binary；切换为新格式前，需先让所有节点升级到能读取该格式的版本
+    @Value("${hmdp.cache.codec:json}")
+    private String codecName;
+
+    private CacheCodec codec;
+
+    //格式版本 -> 解码器
+    private final Map<Byte, CacheCodec> codecsByVersion = new ConcurrentHashMap<>();
+
+    //本地缓存容量，0代表不使用本地缓存
+    @Value("${hmdp.cache.local-max-size:10000}")
+    private int localMaxSize;
+
+    //本地缓存有效期，也是收不到删除广播时本地缓存与redis不一致的最长时间
+    @Value("${hmdp.cache.local-ttl-millis:5000}")
+    private long localTtlMillis;
+
+    //布隆过滤器预计元素数，重建时按上次元素数的2倍扩容
+    @Value("${hmdp.cache.bloom.expected-insertions:1000000}")
+    private long bloomExpectedInsertions;
+
+    //布隆过滤器误判率
+    @Value("${hmdp.cache.bloom.fpp:0.01}")
+    private double bloomFpp;
+
+    //重建时每次从数据库读取的id数量
+    private static final int BLOOM_PAGE_SIZE = 1000;
+
+    //key前缀 -> 布隆过滤器
+    private final Map<String, BloomGuard> bloomGuards = new ConcurrentHashMap<>();
+
+    //数据库中不存在的数据在本地缓存中的占位
+    private static final Object NULL_VALUE = new Object();
+    //缓存未命中
+    private static final Object MISS = new Object();
+
+    //key -> 本节点正在查询数据库的future
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    //key -> 等待其他节点重建完成的信号
+    private final Map<String, CompletableFuture<Void>> loadedSignals = new ConcurrentHashMap<>();
+
+    //本地缓存：key -> 反序列化后的对象；返回的对象被多个请求共享，调用方不能修改
+    private LRUCache<String, Object> localCache;
+
+    @PostConstruct
+    private void init(){
+        for (CacheCodec c : codecs) {
+            if(c.version() != 0){
+                codecsByVersion.put(c.version(), c);
+            }
+        }
+        codec = codecs.stream().filter(c -> c.name().equals(codecName)).findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("未知的缓存编码：" + codecName));
+        listenerContainer.addMessageListener(this, new ChannelTopic(CACHE_LOADED_CHANNEL));
+        if(localMaxSize > 0){
+            localCache = CacheUtil.newLRUCache(localMaxSize, localTtlMillis);
+            listenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        }
+    }
+
+    //删除缓存，并广播给所有节点(包括自己)删除本地缓存；在事务中时提交后再删除，避免删除后、提交前的查询把旧数据重新写入缓存
+    public void delete(String key){
+        if(TransactionSynchronizationManager.isSynchronizationActive()){
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    doDelete(key);
+                }
+            });
+        }else {
+            doDelete(key);
+        }
+    }
 
-    //将任意java对象序列化json存储在redis中，设置TTL时间
+    private void doDelete(String key){
+        template.delete(key);
+        if(localCache != null){
+            localCache.remove(key);
+            template.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+        }
+    }
+
+    //注册key前缀的布隆过滤器，idsAfter按主键keyset分页查询大于指定id的id(升序，最多limit条)；首次构建完成前不过滤
+    public void registerBloomFilter(String keyPrefix, IdPageLoader idsAfter){
+        if(bloomGuards.isEmpty()){
+            listenerContainer.addMessageListener(this, new ChannelTopic(CACHE_BLOOM_CHANNEL));
+        }
+        bloomGuards.put(keyPrefix, new BloomGuard(idsAfter));
+    }
+
+    //新增数据后把id加入布隆过滤器，并广播给所有节点(包括自己)
+    public void addToBloomFilter(String keyPrefix, Object id){
+        BloomGuard guard = bloomGuards.get(keyPrefix);
+        if(guard != null){
+            guard.put(String.valueOf(id));
+            template.convertAndSend(CACHE_BLOOM_CHANNEL, keyPrefix + id);
+        }
+    }
+
+    //定时从数据库重建布隆过滤器，启动时立即构建；重建期间新增的id同时写入新旧两个过滤器
+    @Scheduled(fixedDelayString = "${hmdp.cache.bloom.rebuild-interval-millis:3600000}")
+    public void rebuildBloomFilters(){
+        bloomGuards.forEach((keyPrefix, guard) -> {
+            try {
+                long count = guard.rebuild(Math.max(bloomExpectedInsertions, guard.count * 2), bloomFpp);
+                log.info("布隆过滤器{}重建完成，元素数：{}", keyPrefix, count);
+            } catch (Exception e) {
+                guard.building = null;
+                log.error("布隆过滤器{}重建失败", keyPrefix, e);
+            }
+        });
+    }
+
+    //布隆过滤器判断id一定不存在
+    private boolean notExists(String keyPrefix, Object id){
+        BloomGuard guard = bloomGuards.get(keyPrefix);
+        if(guard == null){
+            return false;
+        }
+        LocalBloomFilter filter = guard.filter;
+        return filter != null && !filter.mightContain(String.valueOf(id));
+    }
+
+    //接收其他节点(包括自己)的删除、布隆过滤器新增、缓存重建完成广播
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        if(CACHE_LOADED_CHANNEL.equals(channel)){
+            CompletableFuture<Void> loaded = loadedSignals.remove(key);
+            if(loaded != null){
+                loaded.complete(null);
+            }
+        }else if(CACHE_BLOOM_CHANNEL.equals(channel)){
+            bloomGuards.forEach((keyPrefix, guard) -> {
+                if(key.startsWith(keyPrefix)){
+                    guard.put(key.substring(keyPrefix.length()));
+                }
+            });
+        }else if(localCache != null){
+            localCache.remove(key);
+        }
+    }
+
+    private void putLocal(String key, Object value){
+        if(localCache != null){
+            localCache.put(key, value == null ? NULL_VALUE : value);
+        }
+    }
+
+    //将任意java对象按hmdp.cache.codec编码后存储在redis中，设置TTL时间
     public void set(String key, Object value, Long time, TimeUnit unit){
-        template.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        byte[] bytes = writeCodec(value.getClass()).encode(value);
+        template.execute((RedisCallback<Boolean>) connection -> connection.stringCommands()
+                .set(rawKey(key), bytes, Expiration.from(time, unit), RedisStringCommands.SetOption.upsert()));
     }
 
     //在上基础上修改了TTL，改为逻辑过期时间，处理缓存击穿
     public void setWithExpire(String key,Object value,Long time,TimeUnit unit){
+        setWithExpire(key, value, time, unit, 0L);
+    }
+
+    //写入逻辑过期的缓存，同时记录重建耗时
+    public void setWithExpire(String key,Object value,Long time,TimeUnit unit,Long computeMillis){
         RedisData redisData = new RedisData();
         redisData.setData(value);
-        //不确定传入时间的单位，统一转换秒存储
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        template.opsForValue().set(key,JSONUtil.toJsonStr(value));
+        redisData.setExpireTime(LocalDateTime.now().plus(unit.toMillis(time), ChronoUnit.MILLIS));
+        redisData.setComputeMillis(computeMillis);
+        byte[] bytes = writeCodec(value.getClass()).encodeExpiring(redisData);
+        template.execute((RedisCallback<Boolean>) connection -> connection.stringCommands().set(rawKey(key), bytes));
+    }
+
+    //写入使用的编码器，不支持的类型使用json
+    private CacheCodec writeCodec(Class<?> type){
+        return codec.supports(type) ? codec : jsonCodec;
+    }
+
+    //按第一个字节(格式版本)选择解码器，没有匹配的版本时是json
+    private CacheCodec readCodec(byte[] bytes){
+        CacheCodec versioned = codecsByVersion.get(bytes[0]);
+        return versioned != null ? versioned : jsonCodec;
+    }
+
+    private byte[] rawKey(String key){
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] getBytes(String key){
+        return template.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey(key)));
     }
 
     //根据指定的key查询缓存，反序列化为指定类型，缓存空值解决缓存穿透
     //参数分别是key前缀和id，反序列化的类型，函数式接口，用来调用数据库，以及TTL的时间设置R代表返回类型
     public <R,ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID,R> dbBack,Long time, TimeUnit unit){
-        //1、查询redis
         String key = keyPrefix + id;
-        String shopJson = template.opsForValue().get(key);
-        //2、判断redis是否有其内容，有就返回，没有就对数据库进行查询
-        if(StrUtil.isNotBlank(shopJson)){
-            //有内容，返回结果，把json反序列化为指定类型
-            return JSONUtil.toBean(shopJson,type);
+        //0、布隆过滤器判断不存在直接返回
+        if(notExists(keyPrefix, id)){
+            return null;
+        }
+        //1、查询本地缓存和redis，命中(包括缓存的空值)直接返回
+        Object cached = getCached(key, type);
+        if(cached != MISS){
+            return unwrap(cached, type);
         }
+        //2、未命中查询数据库，本节点同一个key同时只有一个线程查询，其他线程等待它的结果
+        return singleFlight(key, () -> loadAndSet(key, id, dbBack, time, unit));
+    }
 
-        //3.1缓存穿透后续判断，存入""到数据库中，不让其再访问数据库；shopJson前面已经做了判断，只有null和""
-        if(shopJson != null){
+    //根据指定的key查询缓存，互斥锁解决缓存击穿：本节点内通过singleFlight合并，集群内只有获取到redis锁的节点查询数据库
+    //未获取到锁的节点等待重建完成的广播后读取redis，不轮询、不递归
+    public <R,ID> R queryWithMutex(
+            String keyPrefix, ID id, Class<R> type, Function<ID,R> dbBack, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        if(notExists(keyPrefix, id)){
             return null;
         }
-        //3、对数据库查询，不存在就报错，由于类型不确定所以对于数据库查询的具体功能需要外面组为函数传递进来
+        Object cached = getCached(key, type);
+        if(cached != MISS){
+            return unwrap(cached, type);
+        }
+        return singleFlight(key, () -> loadWithLock(key, id, type, dbBack, time, unit));
+    }
+
+    private <R,ID> R loadWithLock(String key, ID id, Class<R> type, Function<ID,R> dbBack, Long time, TimeUnit unit){
+        RedisLock lock = new RedisLock(key, template);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            //1、获取锁成功，再次检查redis(等待期间可能已被其他节点重建)后查询数据库
+            if(lock.tryLock(LOCK_SHOP_TTL)){
+                try {
+                    Object cached = getRedis(key, type);
+                    if(cached != MISS){
+                        return unwrap(cached, type);
+                    }
+                    return loadAndSet(key, id, dbBack, time, unit);
+                } finally {
+                    lock.unLock();
+                    //通知等待的节点
+                    template.convertAndSend(CACHE_LOADED_CHANNEL, key);
+                }
+            }
+            //2、其他节点正在重建，等待重建完成的广播
+            Object cached = awaitLoaded(key, type);
+            if(cached != MISS){
+                return unwrap(cached, type);
+            }
+        }
+        //3、持有锁的节点超时未完成(例如宕机)，直接查询数据库
+        return loadAndSet(key, id, dbBack, time, unit);
+    }
+
+    //等待其他节点重建完成，最多等待锁的有效期；先注册再检查redis，避免错过检查之后、等待之前发出的广播
+    private Object awaitLoaded(String key, Class<?> type){
+        CompletableFuture<Void> loaded = loadedSignals.computeIfAbsent(key, k -> new CompletableFuture<>());
+        try {
+            Object cached = getRedis(key, type);
+            if(cached != MISS){
+                return cached;
+            }
+            loaded.get(LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("等待缓存{}重建超时", key);
+        } finally {
+            loadedSignals.remove(key, loaded);
+        }
+        return getRedis(key, type);
+    }
+
+    //查询数据库并写入缓存，数据库中不存在时缓存空值
+    private <R,ID> R loadAndSet(String key, ID id, Function<ID,R> dbBack, Long time, TimeUnit unit){
+        //1、对数据库查询，由于类型不确定所以对于数据库查询的具体功能需要外面组为函数传递进来
         R r = dbBack.apply(id);
         if(r == null){
-            //3.1添加新功能，防止缓存穿透
-            template.opsForValue().set(key,"",2,TimeUnit.MINUTES);
+            //1.1防止缓存穿透，存入""
+            template.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
+            putLocal(key, null);
             return null;
         }
-        //4、数据库存在就存入redis缓存中提高下一次查询效率
-        //4.1添加新功能：缓存更新策略；即当后端更改数据时要保证数据库和redis缓存之间的一致性
-        //将对象再次转化为json字符串存储
-
-        //调用上面的set方法写入redis
+        //2、数据库存在就存入redis缓存中提高下一次查询效率
         set(key,r,time,unit);
+        putLocal(key, r);
         return r;
     }
 
+    //同一个key的并发查询共享一个future，只有第一个线程执行loader
+    @SuppressWarnings("unchecked")
+    private <R> R singleFlight(String key, Supplier<R> loader){
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, future);
+        if(running != null){
+            return (R) running.join();
+        }
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    //依次查询本地缓存、redis；返回对象、NULL_VALUE(缓存的空值)或MISS(未命中)
+    private Object getCached(String key, Class<?> type){
+        if(localCache != null){
+            Object local = localCache.get(key, false);
+            if(local != null){
+                return local;
+            }
+        }
+        return getRedis(key, type);
+    }
+
+    //查询redis，命中时写入本地缓存
+    private Object getRedis(String key, Class<?> type){
+        byte[] bytes = getBytes(key);
+        if(bytes == null){
+            return MISS;
+        }
+        //""是缓存的空值
+        Object value = bytes.length == 0 ? NULL_VALUE : readCodec(bytes).decode(bytes, type);
+        if(value == null){
+            //无法解码(格式或字段已变化)，按未命中处理
+            return MISS;
+        }
+        putLocal(key, value == NULL_VALUE ? null : value);
+        return value;
+    }
+
+    private static <R> R unwrap(Object cached, Class<R> type){
+        return cached == NULL_VALUE ? null : type.cast(cached);
+    }
+
     //根据指定key查询缓存，反序列化指定类型，利用逻辑过期解决缓存击穿问题
+    //提前刷新：过期前按概率异步重建，越接近过期、重建越慢，概率越大(now - 重建耗时*beta*ln(random) >= 过期时间)，已过期时一定重建
+    //热点key在过期前就会被刷新，用户读不到过期数据；各请求在不同时间触发刷新，过期时刻不会集中重建
     public <R,ID> R queryWithExpire(
             String keyPrefix,ID id,Class<R> type,Function<ID,R> dbBack,Long time, TimeUnit unit){
         //1、从redis缓存中查询看能不能查询到
         String key = keyPrefix + id;
-        String shopJson = template.opsForValue().get(key);
-        //2、判断redis是否有其内容，不存在直接返回
-        if(StrUtil.isBlank(shopJson)){
+        byte[] bytes = getBytes(key);
+        if(bytes != null && bytes.length == 0){
+            //""是缓存的空值
             return null;
         }
-        //3、存在把json字符串反序列化对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        //4、判断是否过期，比较时间戳
-        if(expireTime.isAfter(LocalDateTime.now())){
-            //未过期，返回缓存中的数据
-            return r;
+        //2、存在时解码
+        RedisData redisData = bytes == null ? null : readCodec(bytes).decodeExpiring(bytes, type);
+        //3、不存在(未预热)或无法解码时查询数据库并写入缓存，本节点同一个key只查询一次
+        if(redisData == null){
+            return singleFlight(key, () -> loadWithExpire(key, id, dbBack, time, unit));
+        }
+        R r = type.cast(redisData.getData());
+        //4、按概率提前刷新，刷新期间返回缓存中的数据
+        if(shouldRefresh(redisData)){
+            refreshAsync(key, id, dbBack, time, unit);
+        }
+        return r;
+    }
+
+    private boolean shouldRefresh(RedisData redisData){
+        long expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long computeMillis = redisData.getComputeMillis() == null ? 0 : redisData.getComputeMillis();
+        //1 - nextDouble()取值(0, 1]，ln为负数
+        double ahead = -computeMillis * refreshBeta * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        return System.currentTimeMillis() + ahead >= expireAt;
+    }
+
+    //异步重建：本节点同一个key只提交一次，集群内通过redis锁只有一个节点重建；线程池满时放弃本次刷新，由后续请求再触发
+    private <R,ID> void refreshAsync(String key, ID id, Function<ID,R> dbBack, Long time, TimeUnit unit){
+        if(!refreshing.add(key)){
+            return;
+        }
+        String lockKey = LOCK_CACHE_KEY + key;
+        if(!tryLock(lockKey)){
+            refreshing.remove(key);
+            return;
         }
-        //5、过期对缓存进行重建
-        String lockKey = LOCK_SHOP_KEY + id;
-        //5.1获取互斥锁
-        boolean flag = tryLock(lockKey);
-        //5.2判断是否获取成功
-        if(flag){
-            //获取锁成功后应再次检测缓存是否过期，存在无需重建
-            //获取成功开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                //查询数据库
-                R apply = dbBack.apply(id);
-                //添加redis缓存
-                setWithExpire(key,JSONUtil.toJsonStr(apply),time,unit);
+        try {
+            CACHE_REBUILD_EXECUTOR.execute(() -> {
+                try {
+                    loadWithExpire(key, id, dbBack, time, unit);
+                } catch (Exception e) {
+                    log.error("重建缓存{}失败", key, e);
+                } finally {
+                    unLock(lockKey);
+                    refreshing.remove(key);
+                }
             });
+        } catch (RejectedExecutionException e) {
+            unLock(lockKey);
+            refreshing.remove(key);
+        }
+    }
+
+    //查询数据库并写入逻辑过期的缓存，记录重建耗时；数据库中不存在时缓存空值
+    private <R,ID> R loadWithExpire(String key, ID id, Function<ID,R> dbBack, Long time, TimeUnit unit){
+        long begin = System.currentTimeMillis();
+        R r = dbBack.apply(id);
+        if(r == null){
+            template.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
+            return null;
         }
-        //5.3未获取成功则代表已经有线程在更新数据，先返回过期信息
+        setWithExpire(key, r, time, unit, System.currentTimeMillis() - begin);
         return r;
     }
 
@@ -130,4 +508,56 @@ public class CacheClient {
         template.delete(key);
     }
 
+    //按主键keyset分页查询id
+    @FunctionalInterface
+    public interface IdPageLoader {
+        List<Long> idsAfter(Long lastId, int limit);
+    }
+
+    private static class BloomGuard {
+        private final IdPageLoader loader;
+        //当前使用的过滤器，首次构建完成前为null
+        private volatile LocalBloomFilter filter;
+        //重建中的过滤器
+        private volatile LocalBloomFilter building;
+        //上次构建的元素数
+        private volatile long count;
+
+        BloomGuard(IdPageLoader loader) {
+            this.loader = loader;
+        }
+
+        void put(String id){
+            LocalBloomFilter current = filter;
+            if(current != null){
+                current.put(id);
+            }
+            LocalBloomFilter next = building;
+            if(next != null){
+                next.put(id);
+            }
+        }
+
+        long rebuild(long expectedInsertions, double fpp){
+            LocalBloomFilter next = new LocalBloomFilter(expectedInsertions, fpp);
+            building = next;
+            long total = 0;
+            Long lastId = 0L;
+            List<Long> ids;
+            do {
+                ids = loader.idsAfter(lastId, BLOOM_PAGE_SIZE);
+                for (Long id : ids) {
+                    next.put(String.valueOf(id));
+                }
+                total += ids.size();
+                if(!ids.isEmpty()){
+                    lastId = ids.get(ids.size() - 1);
+                }
+            } while (ids.size() == BLOOM_PAGE_SIZE);
+            filter = next;
+            building = null;
+            count = total;
+            return total;
+        }
+    }
 }
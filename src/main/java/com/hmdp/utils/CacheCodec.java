@@ -0,0 +1,29 @@
+package com.hmdp.utils;
+
+/**
+ * @author cgJavaAfter
+ * @date 2023-03-18 16:30
+ */
+//缓存值编解码器：CacheClient按hmdp.cache.codec选择写入使用的编码，读取时按值的第一个字节(格式版本)选择解码器
+//新增编码格式时实现此接口并注册为bean，使用新的版本号；先部署能读取新格式的节点，再切换写入格式，不需要停机
+public interface CacheCodec {
+    //编码器名称，对应hmdp.cache.codec
+    String name();
+
+    //格式版本，写在编码结果的第一个字节；返回0代表没有版本字节(json)，无法匹配其他解码器时使用
+    byte version();
+
+    //是否支持编码此类型，不支持时CacheClient使用json编码
+    boolean supports(Class<?> type);
+
+    byte[] encode(Object value);
+
+    //无法解码(例如实体类字段变化后的旧数据)时返回null，按缓存未命中处理
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    //编码逻辑过期的缓存：过期时间、重建耗时和数据
+    byte[] encodeExpiring(RedisData redisData);
+
+    //解码逻辑过期的缓存，data反序列化为dataType；无法解码时返回null
+    RedisData decodeExpiring(byte[] bytes, Class<?> dataType);
+}
@@ -0,0 +1,69 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author cgJavaAfter
+ * @date 2023-03-18 16:35
+ */
+//json编码，和原先CacheClient写入的格式相同，没有版本字节；兼容升级前写入redis的数据
+@Slf4j
+@Component
+public class JsonCacheCodec implements CacheCodec {
+    @Override
+    public String name() {
+        return "json";
+    }
+
+    @Override
+    public byte version() {
+        return 0;
+    }
+
+    @Override
+    public boolean supports(Class<?> type) {
+        return true;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    //内容不是合法的json(例如其他程序写入的数据)时按未命中处理，和二进制编码一致
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        try {
+            return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+        } catch (Exception e) {
+            log.warn("json缓存解码失败，按未命中处理：{}", e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public byte[] encodeExpiring(RedisData redisData) {
+        return encode(redisData);
+    }
+
+    @Override
+    public RedisData decodeExpiring(byte[] bytes, Class<?> dataType) {
+        RedisData redisData = decode(bytes, RedisData.class);
+        //缺少过期时间或数据(例如写入的不是逻辑过期格式)时按未命中处理
+        if(redisData == null || redisData.getExpireTime() == null || !(redisData.getData() instanceof JSONObject)){
+            return null;
+        }
+        try {
+            redisData.setData(JSONUtil.toBean((JSONObject) redisData.getData(), dataType));
+            return redisData;
+        } catch (Exception e) {
+            log.warn("json缓存解码失败，按未命中处理：{}", e.getMessage());
+            return null;
+        }
+    }
+}
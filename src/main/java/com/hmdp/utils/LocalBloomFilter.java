@@ -0,0 +1,53 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author cgJavaAfter
+ * @date 2023-03-18 10:05
+ */
+//本地布隆过滤器：按预计元素数和误判率计算位数组大小和哈希次数，位数组用AtomicLongArray，多线程并发添加、查询无需加锁
+//判断不存在时一定不存在；判断存在时有误判率的概率实际不存在，由原有的缓存空值兜底
+public class LocalBloomFilter {
+    private final AtomicLongArray bits;
+    private final long bitSize;
+    private final int hashCount;
+
+    public LocalBloomFilter(long expectedInsertions, double fpp){
+        long n = Math.max(expectedInsertions, 1);
+        long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        //向上取整到64的倍数
+        this.bits = new AtomicLongArray((int) ((m + 63) / 64));
+        this.bitSize = (long) bits.length() * 64;
+        this.hashCount = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    }
+
+    public void put(String value){
+        long[] hash = MurmurHash.hash128(value);
+        for (int i = 0; i < hashCount; i++) {
+            long index = Math.floorMod(hash[0] + i * hash[1], bitSize);
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            long old;
+            do {
+                old = bits.get(word);
+                if((old & mask) != 0){
+                    break;
+                }
+            } while (!bits.compareAndSet(word, old, old | mask));
+        }
+    }
+
+    public boolean mightContain(String value){
+        long[] hash = MurmurHash.hash128(value);
+        for (int i = 0; i < hashCount; i++) {
+            long index = Math.floorMod(hash[0] + i * hash[1], bitSize);
+            if((bits.get((int) (index >>> 6)) & (1L << index)) == 0){
+                return false;
+            }
+        }
+        return true;
+    }
+}
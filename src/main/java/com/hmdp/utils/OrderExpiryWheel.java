@@ -0,0 +1,305 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_EXPIRE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_REVERSED_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+import static com.hmdp.utils.SystemConstants.VOUCHER_ORDER_CANCELLED;
+import static com.hmdp.utils.SystemConstants.VOUCHER_ORDER_UNPAID;
+
+/**
+ * @author cgJavaAfter
+ * @date 2023-03-16 10:30
+ */
+//未支付订单超时取消：两级时间轮
+//第一级是redis的zset(seckill:expire，score为超时时间)，下单脚本写入，保证重启后不丢失，容纳全部未到期订单
+//第二级是内存中的哈希时间轮，只加载即将到期(一圈以内)的订单，每个tick处理一个槽，到期的订单攒成一批取消
+//不需要为每个订单创建定时任务；归还redis库存后才从zset删除，取消失败或还未写入数据库(消费者积压)的订单稍后在时间轮中重试
+@Slf4j
+@Component
+public class OrderExpiryWheel {
+    @Resource
+    private StringRedisTemplate template;
+
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private RedisScriptRegistry scriptRegistry;
+
+    //未支付订单的超时时间，0代表不超时取消
+    @Value("${hmdp.seckill.expire.timeout-millis:900000}")
+    private long timeoutMillis;
+
+    //时间轮每格的时长
+    @Value("${hmdp.seckill.expire.tick-millis:100}")
+    private long tickMillis;
+
+    //时间轮槽数，一圈时长为 tick-millis * wheel-size
+    @Value("${hmdp.seckill.expire.wheel-size:512}")
+    private int wheelSize;
+
+    //每次从zset加载、每批取消的最大订单数
+    @Value("${hmdp.seckill.expire.batch-size:500}")
+    private int batchSize;
+
+    //取消失败、或订单还未写入数据库时的重试间隔
+    private static final long RETRY_DELAY_MILLIS = 5000;
+
+    //到期后订单仍未写入数据库的最长等待时间，超过后移出队列
+    private static final long MISSING_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    //每次加载最多读取的页数，剩余的下个tick继续加载
+    private static final int MAX_LOAD_PAGES = 10;
+
+    private List<Timeout>[] buckets;
+    //时间轮中的订单id，避免重复加载；时间轮只由worker线程访问，无需加锁
+    private final Set<Long> inWheel = new HashSet<>();
+    private long startTime;
+    //下一个要处理的tick
+    private long currentTick;
+    //zset中score小于此值的订单已加载到时间轮
+    private double loadedUntil = Double.NEGATIVE_INFINITY;
+    //预加载的时间范围，小于超时时间，保证新下单的订单一定在已加载范围之后
+    private long lookAheadMillis;
+
+    private ExecutorService worker;
+    private volatile boolean running;
+
+    @PostConstruct
+    @SuppressWarnings("unchecked")
+    private void init(){
+        if(timeoutMillis <= 0){
+            return;
+        }
+        buckets = new List[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new ArrayList<>();
+        }
+        lookAheadMillis = Math.min(tickMillis * wheelSize, timeoutMillis / 2);
+        startTime = System.currentTimeMillis();
+        running = true;
+        worker = Executors.newSingleThreadExecutor(new NamedThreadFactory("order-expiry-wheel-", true));
+        worker.submit(this::run);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        running = false;
+        if(worker != null){
+            worker.shutdownNow();
+        }
+    }
+
+    private void run(){
+        while (running){
+            try {
+                //1、等待到下一个tick
+                long deadline = startTime + (currentTick + 1) * tickMillis;
+                long sleep = deadline - System.currentTimeMillis();
+                if(sleep > 0){
+                    TimeUnit.MILLISECONDS.sleep(sleep);
+                }
+                //2、从zset加载即将到期的订单
+                load();
+                //3、处理当前槽，到期的订单批量取消
+                List<Timeout> expired = expireBucket();
+                currentTick++;
+                for (int i = 0; i < expired.size(); i += batchSize) {
+                    cancel(expired.subList(i, Math.min(expired.size(), i + batchSize)));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.error("订单超时时间轮异常", e);
+            }
+        }
+    }
+
+    //按score分页读取[loadedUntil, now + lookAhead]内的订单；下界包含，已在时间轮中的订单按inWheel去重
+    private void load(){
+        double upper = System.currentTimeMillis() + lookAheadMillis;
+        double lower = loadedUntil;
+        for (int page = 0; page < MAX_LOAD_PAGES; page++) {
+            Set<ZSetOperations.TypedTuple<String>> tuples = template.opsForZSet()
+                    .rangeByScoreWithScores(SECKILL_ORDER_EXPIRE_KEY, lower, upper, (long) page * batchSize, batchSize);
+            if(tuples == null || tuples.isEmpty()){
+                loadedUntil = upper;
+                return;
+            }
+            for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+                Long orderId = Long.valueOf(tuple.getValue());
+                if(inWheel.add(orderId)){
+                    schedule(new Timeout(orderId, tuple.getScore().longValue()));
+                }
+                loadedUntil = tuple.getScore();
+            }
+            if(tuples.size() < batchSize){
+                loadedUntil = upper;
+                return;
+            }
+        }
+    }
+
+    private void schedule(Timeout timeout){
+        long deadlineTick = Math.max(currentTick, (timeout.deadline - startTime) / tickMillis);
+        timeout.rounds = (deadlineTick - currentTick) / wheelSize;
+        buckets[(int) (deadlineTick % wheelSize)].add(timeout);
+    }
+
+    private List<Timeout> expireBucket(){
+        List<Timeout> bucket = buckets[(int) (currentTick % wheelSize)];
+        List<Timeout> expired = new ArrayList<>();
+        List<Timeout> remain = new ArrayList<>();
+        for (Timeout timeout : bucket) {
+            if(timeout.rounds <= 0){
+                expired.add(timeout);
+            }else {
+                timeout.rounds--;
+                remain.add(timeout);
+            }
+        }
+        buckets[(int) (currentTick % wheelSize)] = remain;
+        return expired;
+    }
+
+    //取消一批到期订单：数据库事务内取消并归还库存，提交后归还redis库存；只有redis库存归还成功、或确认不需要取消的订单才从zset删除
+    private void cancel(List<Timeout> timeouts){
+        Map<Long, Timeout> byId = new HashMap<>();
+        timeouts.forEach(timeout -> byId.put(timeout.orderId, timeout));
+        List<Long> orderIds = new ArrayList<>(byId.keySet());
+        List<Long> done = new ArrayList<>(orderIds.size());
+        List<Timeout> retries = new ArrayList<>();
+        try {
+            //1、只有仍未支付的订单会被取消
+            List<VoucherOrder> cancelled = voucherOrderService.cancelUnpaidOrders(orderIds);
+            //2、其余订单按数据库状态处理：已取消的(上次归还redis库存失败、或用户已取消)再次归还，reverse.lua保证只归还一次；
+            //已支付、已退款的直接移出队列；还未写入数据库的(消费者积压)稍后重试
+            Set<Long> found = cancelled.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+            List<Long> others = orderIds.stream().filter(id -> !found.contains(id)).collect(Collectors.toList());
+            List<VoucherOrder> reversals = new ArrayList<>(cancelled);
+            if(!others.isEmpty()){
+                for (VoucherOrder order : voucherOrderService.query()
+                        .select("id", "user_id", "voucher_id", "status").in("id", others).list()) {
+                    found.add(order.getId());
+                    if(order.getStatus() == VOUCHER_ORDER_CANCELLED){
+                        reversals.add(order);
+                    }else if(order.getStatus() == VOUCHER_ORDER_UNPAID){
+                        retries.add(byId.get(order.getId()));
+                    }else {
+                        done.add(order.getId());
+                    }
+                }
+            }
+            long now = System.currentTimeMillis();
+            for (Long orderId : others) {
+                if(found.contains(orderId)){
+                    continue;
+                }
+                Timeout timeout = byId.get(orderId);
+                if(now - timeout.expireAt > MISSING_WAIT_MILLIS){
+                    //超过等待时间仍不存在，视为未下单成功(例如转入死信队列)，redis库存由对账归还
+                    log.warn("超时订单{}在数据库中不存在，移出超时队列", orderId);
+                    done.add(orderId);
+                }else {
+                    retries.add(timeout);
+                }
+            }
+            //3、归还redis库存到用户所在分片；用户保留在下单集合中，一人只能抢购一次
+            for (VoucherOrder order : reversals) {
+                if(returnStock(order)){
+                    done.add(order.getId());
+                }else {
+                    retries.add(byId.get(order.getId()));
+                }
+            }
+            reversals.stream().map(VoucherOrder::getVoucherId).distinct().forEach(soldOutRegistry::clear);
+            if(!cancelled.isEmpty()){
+                log.info("取消超时未支付订单{}个", cancelled.size());
+            }
+        } catch (Exception e) {
+            log.error("取消超时订单失败，{}ms后重试：{}", RETRY_DELAY_MILLIS, orderIds, e);
+            done.clear();
+            retries = new ArrayList<>(timeouts);
+        }
+        //4、从超时队列中删除已处理完的订单，其余的留在zset中，稍后在时间轮中重试
+        if(!done.isEmpty()){
+            template.opsForZSet().remove(SECKILL_ORDER_EXPIRE_KEY, done.stream().map(String::valueOf).toArray());
+            inWheel.removeAll(done);
+        }
+        long retryAt = System.currentTimeMillis() + RETRY_DELAY_MILLIS;
+        for (Timeout timeout : retries) {
+            schedule(new Timeout(timeout.orderId, timeout.expireAt, retryAt));
+        }
+    }
+
+    //通过reverse.lua归还redis库存，和取消接口共用已撤销订单集合，同一订单的库存只归还一次
+    private boolean returnStock(VoucherOrder order){
+        try {
+            Long voucherId = order.getVoucherId();
+            int shards = seckillStockShards.shardsOf(voucherId);
+            int shard = SeckillStockShards.homeShard(order.getUserId(), shards);
+            //目标状态为0：数据库已在事务中修改，不再发送撤销消息
+            scriptRegistry.execute("reverse",
+                    Arrays.asList(SeckillStockShards.stockKey(voucherId, shard, shards), SECKILL_REVERSED_KEY + voucherId,
+                            SECKILL_VOUCHER_KEY + voucherId),
+                    order.getId().toString(), order.getUserId().toString(), voucherId.toString(), "0", "0", "0");
+            return true;
+        } catch (Exception e) {
+            log.error("归还超时订单{}的redis库存失败", order.getId(), e);
+            return false;
+        }
+    }
+
+    private static class Timeout {
+        private final Long orderId;
+        //订单的超时时间(zset中的score)
+        private final long expireAt;
+        //在时间轮中的到期时间，重试时晚于expireAt
+        private final long deadline;
+        //还需要转几圈才到期
+        private long rounds;
+
+        Timeout(Long orderId, long deadline) {
+            this(orderId, deadline, deadline);
+        }
+
+        Timeout(Long orderId, long expireAt, long deadline) {
+            this.orderId = orderId;
+            this.expireAt = expireAt;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -12,10 +12,34 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_BLOOM_CHANNEL = "cache:bloom";
+    public static final String CACHE_LOADED_CHANNEL = "cache:loaded";
+
+    public static final Long CACHE_VOUCHER_LIST_TTL = 30L;
+    public static final String CACHE_VOUCHER_LIST_KEY = "cache:voucher:list:";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
+    public static final String LOCK_CACHE_KEY = "lock:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
+    public static final String ID_WORKER_KEY = "icr:worker:";
+
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_WARMED_KEY = "seckill:warmed";
+    public static final String SECKILL_BUCKET_KEY = "seckill:bucket:";
+    public static final String SECKILL_ARCHIVE_STREAM = "stream-seckill-archive";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    public static final String SECKILL_ORDER_STREAM = "stream-orders";
+    public static final String SECKILL_ORDER_GROUP = "evaDepart";
+    public static final String SECKILL_ORDER_DLQ_STREAM = "stream-orders-dlq";
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:status:";
+    public static final Long SECKILL_ORDER_STATUS_TTL = 30L;
+    public static final String SECKILL_ORDER_EXPIRE_KEY = "seckill:expire";
+    public static final String SECKILL_REVERSED_KEY = "seckill:reversed:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -7,5 +7,7 @@ import java.time.LocalDateTime;
 @Data
 public class RedisData {
     private LocalDateTime expireTime;
+    //重建耗时(毫秒)，用于计算提前刷新的概率
+    private Long computeMillis;
     private Object data;
 }
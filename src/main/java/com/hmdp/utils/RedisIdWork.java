@@ -1,27 +1,61 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author cgJavaAfter
  * @date 2023-03-05 15:38
  */
-//基于redis的id生成器
+//基于redis的id生成器；hmdp.id.mode=snowflake时由SnowflakeIdWork代替
+@Slf4j
 @Component
+@ConditionalOnExpression("'${hmdp.id.mode:incr}' != 'snowflake'")
 public class RedisIdWork {
     private static final long BEGIN_TIMESTAMP = 1640995200L;//初始时间戳(20220101)
 
     private static final int COUNT_BITS = 32;//序列号位数
+    private static final long MAX_INCREMENT = 1L << (COUNT_BITS - 1);//每天序列号上限
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    //号段预取线程，当前号段剩余不足时异步申请下一个号段
+    private final ExecutorService segmentPrefetchExecutor = Executors.newSingleThreadExecutor(
+            new NamedThreadFactory("id-segment-prefetch-", true));
 
     @Resource
     private StringRedisTemplate template;
 
+    //生成模式：incr每个id执行一次INCR；segment每次INCRBY申请一个号段，在本地分配；snowflake见SnowflakeIdWork
+    @Value("${hmdp.id.mode:incr}")
+    private String mode;
+
+    //号段模式下每次申请的序列号数量
+    @Value("${hmdp.id.segment-step:1000}")
+    private int segmentStep;
+
+    //keyPrefix -> 号段持有者
+    private final Map<String, SegmentHolder> segments = new ConcurrentHashMap<>();
+
+    //缓存当天的日期字符串，避免每次都格式化
+    private volatile DayCache dayCache = new DayCache(-1, null);
+
     //自增Id功能实现
     public long nextId(String keyPrefix){
         //1、生成时间戳
@@ -31,12 +65,126 @@ public class RedisIdWork {
 
         //2、生成序列号
         //2.1获取当前日期，精确到天，每天都对应不同的序列号
-        String data = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        Long increment = template.opsForValue().increment("icr:" + keyPrefix + ":" + data);
+        String data = today(second);
+        long increment = "segment".equals(mode)
+                ? segments.computeIfAbsent(keyPrefix, SegmentHolder::new).next(data)
+                : template.opsForValue().increment("icr:" + keyPrefix + ":" + data);
+
+        //序列号最高位留给SnowflakeIdWork作为标记，两种模式的id不会冲突
+        if(increment >= MAX_INCREMENT){
+            throw new IllegalStateException("当天序列号已用完：" + keyPrefix);
+        }
 
         //3.对时间戳和序列号进行拼接，利用位运算
         //总共有64位存储，前31存储时间戳，后32存储序列号
         return timestamp << COUNT_BITS | increment;
     }
 
+    private String today(long second){
+        long epochDay = Math.floorDiv(second, 86400L);
+        DayCache cache = dayCache;
+        if(cache.epochDay != epochDay){
+            cache = new DayCache(epochDay, LocalDateTime.ofEpochSecond(second, 0, ZoneOffset.UTC).format(DATE_FORMATTER));
+            dayCache = cache;
+        }
+        return cache.text;
+    }
+
+    //通过INCRBY申请[end - step + 1, end]的号段
+    private Segment lease(String keyPrefix, String date){
+        Long end = template.opsForValue().increment("icr:" + keyPrefix + ":" + date, segmentStep);
+        return new Segment(date, end - segmentStep + 1, end);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        segmentPrefetchExecutor.shutdownNow();
+    }
+
+    private static class DayCache {
+        private final long epochDay;
+        private final String text;
+
+        DayCache(long epochDay, String text) {
+            this.epochDay = epochDay;
+            this.text = text;
+        }
+    }
+
+    //号段：[cursor, max]之间的序列号由本节点独占，通过CAS自增分配
+    private static class Segment {
+        private final String date;
+        private final AtomicLong cursor;
+        private final long max;
+        //分配到此序列号(已用80%)时预取下一个号段
+        private final long prefetchAt;
+
+        Segment(String date, long start, long max) {
+            this.date = date;
+            this.cursor = new AtomicLong(start);
+            this.max = max;
+            this.prefetchAt = max - (max - start + 1) / 5;
+        }
+    }
+
+    private class SegmentHolder {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile CompletableFuture<Segment> next;
+
+        SegmentHolder(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long next(String date){
+            while (true){
+                Segment segment = current;
+                if(segment != null && segment.date.equals(date)){
+                    long seq = segment.cursor.getAndIncrement();
+                    if(seq <= segment.max){
+                        if(seq == segment.prefetchAt){
+                            prefetch(date);
+                        }
+                        return seq;
+                    }
+                }
+                if(segment != null && segment.date.compareTo(date) > 0){
+                    //跨天瞬间拿到前一天日期的线程，直接在前一天的key上INCR，不回退号段
+                    return template.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+                }
+                //号段用完或跨天，切换号段；只有一个线程切换，其他线程切换后重试
+                switchSegment(segment, date);
+            }
+        }
+
+        private void prefetch(String date){
+            synchronized (this){
+                if(next == null){
+                    next = CompletableFuture.supplyAsync(() -> lease(keyPrefix, date), segmentPrefetchExecutor);
+                }
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted, String date){
+            if(current != exhausted){
+                return;
+            }
+            Segment segment = null;
+            CompletableFuture<Segment> prefetched = next;
+            next = null;
+            if(prefetched != null){
+                try {
+                    segment = prefetched.join();
+                } catch (Exception e) {
+                    log.error("预取号段失败，同步申请：{}", keyPrefix, e);
+                }
+            }
+            //预取的号段属于前一天时丢弃，按新日期申请
+            if(segment == null || !segment.date.equals(date)){
+                segment = lease(keyPrefix, date);
+            }
+            current = segment;
+        }
+    }
+
 }
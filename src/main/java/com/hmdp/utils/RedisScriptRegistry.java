@@ -0,0 +1,135 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.io.IoUtil;
+import cn.hutool.crypto.SecureUtil;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author cgJavaAfter
+ * @date 2023-03-15 16:10
+ */
+//lua脚本注册中心：启动时加载resources/lua目录下的所有*.lua，按文件名(不含.lua)注册，通过SCRIPT LOAD预加载到redis
+//执行时只发送EVALSHA和sha1，redis重启或SCRIPT FLUSH后收到NOSCRIPT时自动重新加载并重试；每个脚本记录执行耗时
+//新增脚本只需把.lua文件放到resources/lua目录下，调用execute("文件名", keys, args)
+@Slf4j
+@Component
+public class RedisScriptRegistry {
+    @Resource
+    private StringRedisTemplate template;
+
+    @Resource
+    private MeterRegistry registry;
+
+    //脚本名 -> 脚本
+    private final Map<String, Script> scripts = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() throws IOException {
+        org.springframework.core.io.Resource[] resources = new PathMatchingResourcePatternResolver().getResources("classpath*:lua/*.lua");
+        for (org.springframework.core.io.Resource resource : resources) {
+            String filename = resource.getFilename();
+            String name = filename.substring(0, filename.length() - ".lua".length());
+            String body;
+            try (InputStream in = resource.getInputStream()) {
+                body = IoUtil.read(in, StandardCharsets.UTF_8);
+            }
+            Script script = new Script(name, body, Timer.builder("redis.script")
+                    .tag("script", name)
+                    .publishPercentileHistogram()
+                    .register(registry));
+            scripts.put(name, script);
+            try {
+                load(script);
+            } catch (Exception e) {
+                //redis暂时不可用时不影响启动，第一次执行时会通过NOSCRIPT重新加载
+                log.warn("预加载lua脚本{}失败：{}", name, e.getMessage());
+            }
+        }
+        log.info("已注册lua脚本：{}", scripts.keySet());
+    }
+
+    //执行返回整数的脚本，keys和args按字符串序列化
+    public Long execute(String name, List<String> keys, String... args){
+        Script script = scripts.get(name);
+        if(script == null){
+            throw new IllegalArgumentException("lua脚本不存在：" + name);
+        }
+        long begin = System.nanoTime();
+        try {
+            return evalSha(script, keys, args);
+        } catch (Exception e) {
+            if(!isNoScript(e)){
+                throw e;
+            }
+            log.warn("redis中没有lua脚本{}，重新加载", name);
+            load(script);
+            return evalSha(script, keys, args);
+        } finally {
+            script.timer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private Long evalSha(Script script, List<String> keys, String[] args){
+        RedisSerializer<String> serializer = template.getStringSerializer();
+        byte[][] keysAndArgs = new byte[keys.size() + args.length][];
+        int i = 0;
+        for (String key : keys) {
+            keysAndArgs[i++] = serializer.serialize(key);
+        }
+        for (String arg : args) {
+            keysAndArgs[i++] = serializer.serialize(arg);
+        }
+        return template.execute((RedisCallback<Long>) connection ->
+                connection.scriptingCommands().evalSha(script.sha, ReturnType.INTEGER, keys.size(), keysAndArgs));
+    }
+
+    private void load(Script script){
+        String sha = template.execute((RedisCallback<String>) connection ->
+                connection.scriptingCommands().scriptLoad(script.body.getBytes(StandardCharsets.UTF_8)));
+        if(!script.sha.equals(sha)){
+            log.warn("lua脚本{}的sha1不一致，本地：{}，redis：{}", script.name, script.sha, sha);
+        }
+    }
+
+    //NOSCRIPT异常可能被spring包装多层，沿异常链查找
+    private static boolean isNoScript(Throwable e){
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if(cause.getMessage() != null && cause.getMessage().contains("NOSCRIPT")){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Script {
+        private final String name;
+        private final String body;
+        private final String sha;
+        private final Timer timer;
+
+        Script(String name, String body, Timer timer) {
+            this.name = name;
+            this.body = body;
+            this.sha = SecureUtil.sha1(body);
+            this.timer = timer;
+        }
+    }
+}
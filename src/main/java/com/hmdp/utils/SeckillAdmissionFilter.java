@@ -0,0 +1,50 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author cgJavaAfter
+ * @date 2023-03-13 11:06
+ */
+//秒杀准入的本地预过滤：lua脚本中的令牌桶返回繁忙后，本节点在短时间内直接拒绝该优惠券的请求，
+//不再生成订单id和访问redis，令牌桶补充后再放行
+@Component
+public class SeckillAdmissionFilter {
+
+    //令牌桶速率为剩余库存的倍数，传给lua脚本，0代表不限流
+    @Value("${hmdp.seckill.admission.rate-multiple:3}")
+    private int rateMultiple;
+
+    //令牌桶繁忙后本地拒绝的时长
+    @Value("${hmdp.seckill.admission.local-backoff-millis:20}")
+    private long backoffMillis;
+
+    //优惠券id -> 本地拒绝截止时间戳
+    private final Map<Long, Long> busyUntil = new ConcurrentHashMap<>();
+
+    public int getRateMultiple() {
+        return rateMultiple;
+    }
+
+    //判断本节点是否处于拒绝窗口内
+    public boolean isBusy(Long voucherId){
+        Long until = busyUntil.get(voucherId);
+        if(until == null){
+            return false;
+        }
+        if(until < System.currentTimeMillis()){
+            busyUntil.remove(voucherId, until);
+            return false;
+        }
+        return true;
+    }
+
+    //lua脚本返回令牌不足时调用
+    public void markBusy(Long voucherId){
+        busyUntil.put(voucherId, System.currentTimeMillis() + backoffMillis);
+    }
+}
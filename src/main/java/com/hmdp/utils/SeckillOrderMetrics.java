@@ -0,0 +1,119 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+
+/**
+ * @author cgJavaAfter
+ * @date 2023-03-14 09:30
+ */
+//stream-orders消费情况的监控指标，通过/actuator/prometheus暴露，用于消费者扩容和积压告警
+//积压类指标由定时任务采样后缓存，采集指标时不访问redis
+@Slf4j
+@Component
+public class SeckillOrderMetrics {
+    @Resource
+    private StringRedisTemplate template;
+
+    @Resource
+    private MeterRegistry registry;
+
+    //队列长度(XLEN)、pending数量、最早pending消息的等待时间、消费者组投递落后于生产的时间
+    private final AtomicLong streamLength = new AtomicLong();
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final AtomicLong oldestPendingAgeMillis = new AtomicLong();
+    private final AtomicLong deliveryLagMillis = new AtomicLong();
+
+    private Timer persistTimer;
+    private Counter ackCounter;
+    private Counter retryCounter;
+    private Counter deadLetterCounter;
+    private Counter failureCounter;
+    private Counter trimmedCounter;
+
+    @PostConstruct
+    private void init(){
+        registry.gauge("seckill.order.stream.length", streamLength);
+        registry.gauge("seckill.order.pending.count", pendingCount);
+        registry.gauge("seckill.order.pending.oldest.age.ms", oldestPendingAgeMillis);
+        registry.gauge("seckill.order.delivery.lag.ms", deliveryLagMillis);
+        persistTimer = Timer.builder("seckill.order.persist")
+                .description("每批订单写入数据库的耗时")
+                .publishPercentileHistogram()
+                .register(registry);
+        ackCounter = registry.counter("seckill.order.ack");
+        retryCounter = registry.counter("seckill.order.retry");
+        deadLetterCounter = registry.counter("seckill.order.dead.letter");
+        failureCounter = registry.counter("seckill.order.failure");
+        trimmedCounter = registry.counter("seckill.order.stream.trimmed");
+    }
+
+    public void recordPersist(long nanos){
+        persistTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void acked(int count){
+        ackCounter.increment(count);
+    }
+
+    public void retried(int count){
+        retryCounter.increment(count);
+    }
+
+    public void deadLettered(int count){
+        deadLetterCounter.increment(count);
+    }
+
+    public void failed(int count){
+        failureCounter.increment(count);
+    }
+
+    public void trimmed(long count){
+        trimmedCounter.increment(count);
+    }
+
+    //定时采样积压情况：XINFO STREAM、XINFO GROUPS、XPENDING各一次
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order.metrics-interval-millis:5000}")
+    public void sample(){
+        try {
+            long now = System.currentTimeMillis();
+            StreamInfo.XInfoStream info = template.opsForStream().info(SECKILL_ORDER_STREAM);
+            streamLength.set(info.streamLength());
+            template.opsForStream().groups(SECKILL_ORDER_STREAM).forEach(group -> {
+                if(SECKILL_ORDER_GROUP.equals(group.groupName())){
+                    deliveryLagMillis.set(Math.max(0, idMillis(info.lastGeneratedId()) - idMillis(group.lastDeliveredId())));
+                }
+            });
+            PendingMessagesSummary summary = template.opsForStream().pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP);
+            pendingCount.set(summary.getTotalPendingMessages());
+            oldestPendingAgeMillis.set(summary.getTotalPendingMessages() == 0 ? 0
+                    : Math.max(0, now - idMillis(summary.minMessageId())));
+        } catch (Exception e) {
+            log.warn("stream-orders指标采样失败：{}", e.getMessage());
+        }
+    }
+
+    //stream消息id的格式为 毫秒时间戳-序号
+    private static long idMillis(String id){
+        if(id == null){
+            return 0;
+        }
+        int index = id.indexOf('-');
+        return Long.parseLong(index < 0 ? id : id.substring(0, index));
+    }
+}
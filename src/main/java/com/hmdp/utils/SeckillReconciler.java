@@ -0,0 +1,339 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+import static com.hmdp.utils.SystemConstants.VOUCHER_ORDER_CANCELLED;
+import static com.hmdp.utils.SystemConstants.VOUCHER_ORDER_REFUNDED;
+
+/**
+ * @author cgJavaAfter
+ * @date 2023-03-15 10:40
+ */
+//秒杀数据对账：逐个优惠券比较redis(库存、下单集合)和mysql(tb_seckill_voucher.init_stock、tb_voucher_order)
+//redis集合用SSCAN、数据库用按主键的keyset分页，每批最多batch-size条，不会把整个集合加载到内存
+//下单集合保存所有下过单的用户，包括已取消、已退款的订单(一人只能抢购一次)
+//1、数据库有订单但redis集合中没有：redis数据丢失，修复时补回集合，防止用户重复下单
+//2、redis集合中有但数据库没有订单：例如转入死信队列的订单，修复时移出集合并归还库存
+//3、redis剩余库存应等于 初始库存 - 有效订单数(未取消、未退款)，修复时按此调整；数据库剩余库存只用于报告，不作为修复依据，
+//  避免数据库库存漏扣时把redis库存调高造成超卖；取消订单时数据库和redis的库存不是同时归还，连续两轮差值相同才修复
+//消息队列中的消息会造成暂时的不一致，差异只在队列消费完时确认，大促期间队列一直有消息时本轮跳过
+//每个优惠券的对账在分布式锁内执行，多个节点不会重复修复同一个差异
+@Slf4j
+@Component
+public class SeckillReconciler {
+    @Resource
+    private StringRedisTemplate template;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private MeterRegistry registry;
+
+    //每批SSCAN、数据库分页、SISMEMBER的数量
+    @Value("${hmdp.seckill.reconcile.batch-size:500}")
+    private int batchSize;
+
+    //是否修复差异，false时只报告
+    @Value("${hmdp.seckill.reconcile.repair:false}")
+    private boolean repair;
+
+    //单个优惠券对账锁的超时时间
+    @Value("${hmdp.seckill.reconcile.lock-seconds:60}")
+    private long lockSeconds;
+
+    //上一轮的库存差值，只由定时任务线程访问
+    private final Map<Long, Long> lastStockDiffs = new HashMap<>();
+
+    //每个优惠券最多记录的待确认差异数量，避免数据库不可用时候选集合无限增长
+    private static final int MAX_CANDIDATES = 1000;
+
+    @Resource
+    private RedisScriptRegistry scriptRegistry;
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval-millis:300000}",
+            initialDelayString = "${hmdp.seckill.reconcile.interval-millis:300000}")
+    public void reconcile(){
+        try {
+            //按voucher_id做keyset分页遍历秒杀券，只对账redis中已加载库存的优惠券
+            long lastVoucherId = 0;
+            while (true){
+                List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                        .gt("voucher_id", lastVoucherId)
+                        .orderByAsc("voucher_id")
+                        .last("limit " + batchSize)
+                        .list();
+                for (SeckillVoucher voucher : vouchers) {
+                    reconcile(voucher.getVoucherId());
+                }
+                if(vouchers.size() < batchSize){
+                    break;
+                }
+                lastVoucherId = vouchers.get(vouchers.size() - 1).getVoucherId();
+            }
+        } catch (Exception e) {
+            log.error("秒杀数据对账异常", e);
+        }
+    }
+
+    public void reconcile(Long voucherId){
+        //其他节点正在对账该优惠券时跳过
+        RedisLock lock = new RedisLock("seckill:reconcile:" + voucherId, template);
+        if(!lock.tryLock(lockSeconds)){
+            return;
+        }
+        try {
+            reconcileLocked(voucherId);
+        } finally {
+            lock.unLock();
+        }
+    }
+
+    private void reconcileLocked(Long voucherId){
+        int shards = seckillStockShards.shardsOf(voucherId);
+        if(!Boolean.TRUE.equals(template.hasKey(SeckillStockShards.stockKey(voucherId, 0, shards)))){
+            return;
+        }
+        //1、下单和取消都经过消息队列，队列中的消息会造成暂时的不一致；队列未消费完时直接跳过，不做全量扫描
+        String drainedId = drainedId();
+        if(drainedId == null){
+            log.debug("消息队列未消费完，跳过优惠券{}的对账", voucherId);
+            return;
+        }
+        //2、收集两个方向的候选差异；扫描期间有新的消息写入队列时放弃本次对账，否则再次确认候选，剩下的才是真正的差异
+        List<Long> redisCandidates = collectOrdersMissingInRedis(voucherId, shards);
+        List<Long> dbCandidates = collectOrdersMissingInDb(voucherId, shards);
+        if(!drainedId.equals(drainedId())){
+            log.debug("对账期间有新的消息，跳过优惠券{}的对账，待确认：{}/{}", voucherId, redisCandidates.size(), dbCandidates.size());
+            return;
+        }
+        List<Long> missingInRedis = filterMissingInRedis(voucherId, shards, findExistsInDb(voucherId, redisCandidates));
+        List<Long> missingInDb = filterMissingInDb(voucherId, dbCandidates);
+        if(repair){
+            //数据库有订单但redis没有：补回集合，防止用户重复下单
+            for (Long userId : missingInRedis) {
+                template.opsForSet().add(orderKey(voucherId, userId, shards), userId.toString());
+            }
+            //redis有但数据库没有(例如转入死信队列的订单)：移出集合并归还库存
+            if(!missingInDb.isEmpty()){
+                rollback(voucherId, shards, missingInDb);
+            }
+        }
+        //3、库存放在集合修复之后比较，回滚归还的库存已计入
+        Long stockDiff = checkStock(voucherId, shards, drainedId);
+        record("missing_in_redis", missingInRedis.size());
+        record("missing_in_db", missingInDb.size());
+        record("stock", stockDiff == null ? 0 : Math.abs(stockDiff));
+        if(!missingInRedis.isEmpty() || !missingInDb.isEmpty() || (stockDiff != null && stockDiff != 0)){
+            log.warn("秒杀对账发现差异，优惠券：{}，redis缺少订单：{}，数据库缺少订单：{}，库存差(应剩余-redis)：{}，已修复：{}",
+                    voucherId, missingInRedis.size(), missingInDb.size(), stockDiff, repair);
+        }
+    }
+
+    //keyset分页扫描订单，批量SISMEMBER检查用户是否在下单集合中；返回不在集合中的用户
+    private List<Long> collectOrdersMissingInRedis(Long voucherId, int shards){
+        List<Long> candidates = new ArrayList<>();
+        long lastId = 0;
+        while (candidates.size() < MAX_CANDIDATES){
+            List<VoucherOrder> orders = voucherOrderService.query()
+                    .select("id", "user_id")
+                    .eq("voucher_id", voucherId)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + batchSize)
+                    .list();
+            if(orders.isEmpty()){
+                break;
+            }
+            candidates.addAll(filterMissingInRedis(voucherId, shards,
+                    orders.stream().map(VoucherOrder::getUserId).collect(Collectors.toList())));
+            if(orders.size() < batchSize){
+                break;
+            }
+            lastId = orders.get(orders.size() - 1).getId();
+        }
+        return candidates;
+    }
+
+    private List<Long> filterMissingInRedis(Long voucherId, int shards, List<Long> userIds){
+        if(userIds.isEmpty()){
+            return userIds;
+        }
+        RedisSerializer<String> serializer = template.getStringSerializer();
+        List<Object> members = template.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long userId : userIds) {
+                connection.setCommands().sIsMember(serializer.serialize(orderKey(voucherId, userId, shards)),
+                        serializer.serialize(userId.toString()));
+            }
+            return null;
+        });
+        List<Long> missing = new ArrayList<>();
+        for (int i = 0; i < userIds.size(); i++) {
+            if(!Boolean.TRUE.equals(members.get(i))){
+                missing.add(userIds.get(i));
+            }
+        }
+        return missing;
+    }
+
+    //SSCAN遍历下单集合，每批到数据库查询已有订单，返回数据库中没有订单的用户
+    private List<Long> collectOrdersMissingInDb(Long voucherId, int shards){
+        List<Long> candidates = new ArrayList<>();
+        for (int shard = 0; shard < shards; shard++) {
+            ScanOptions options = ScanOptions.scanOptions().count(batchSize).build();
+            try (Cursor<String> cursor = template.opsForSet().scan(SeckillStockShards.orderKey(voucherId, shard, shards), options)) {
+                List<Long> batch = new ArrayList<>(batchSize);
+                while (cursor.hasNext() && candidates.size() < MAX_CANDIDATES){
+                    batch.add(Long.valueOf(cursor.next()));
+                    if(batch.size() >= batchSize){
+                        candidates.addAll(filterMissingInDb(voucherId, batch));
+                        batch.clear();
+                    }
+                }
+                if(!batch.isEmpty()){
+                    candidates.addAll(filterMissingInDb(voucherId, batch));
+                }
+            } catch (Exception e) {
+                log.error("扫描下单集合失败，优惠券：{}", voucherId, e);
+            }
+        }
+        return candidates;
+    }
+
+    //查询用户中在数据库有订单的部分
+    private List<Long> findExistsInDb(Long voucherId, List<Long> userIds){
+        if(userIds.isEmpty()){
+            return userIds;
+        }
+        Set<Long> exists = new HashSet<>();
+        for (int i = 0; i < userIds.size(); i += batchSize) {
+            voucherOrderService.query()
+                    .select("user_id")
+                    .eq("voucher_id", voucherId)
+                    .in("user_id", userIds.subList(i, Math.min(userIds.size(), i + batchSize)))
+                    .list()
+                    .forEach(order -> exists.add(order.getUserId()));
+        }
+        return userIds.stream().filter(exists::contains).collect(Collectors.toList());
+    }
+
+    private List<Long> filterMissingInDb(Long voucherId, List<Long> userIds){
+        Set<Long> exists = new HashSet<>(findExistsInDb(voucherId, userIds));
+        return userIds.stream().filter(userId -> !exists.contains(userId)).collect(Collectors.toList());
+    }
+
+    //移出下单集合并归还库存，例如转入死信队列的订单
+    private void rollback(Long voucherId, int shards, List<Long> userIds){
+        for (Long userId : userIds) {
+            int shard = SeckillStockShards.homeShard(userId, shards);
+            scriptRegistry.execute("rollback", Arrays.asList(SeckillStockShards.stockKey(voucherId, shard, shards),
+                    SeckillStockShards.orderKey(voucherId, shard, shards)), userId.toString());
+        }
+        soldOutRegistry.clear(voucherId);
+    }
+
+    //比较redis各分片库存之和与应剩余库存(初始库存 - 有效订单数)，返回 应剩余-redis 的差值；修复时把差值加到第一个分片上
+    //数据库剩余库存与应剩余库存不一致时只报告；读取期间有新的消息写入队列时两边可能不一致，此时放弃本次比较
+    private Long checkStock(Long voucherId, int shards, String drainedId){
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if(voucher == null || voucher.getInitStock() == null){
+            //没有初始库存的老数据无法确定应剩余的库存，不比较
+            return null;
+        }
+        int orders = voucherOrderService.query()
+                .eq("voucher_id", voucherId)
+                .notIn("status", VOUCHER_ORDER_CANCELLED, VOUCHER_ORDER_REFUNDED)
+                .count();
+        long expected = voucher.getInitStock() - orders;
+        List<String> keys = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            keys.add(SeckillStockShards.stockKey(voucherId, shard, shards));
+        }
+        List<String> values = template.opsForValue().multiGet(keys);
+        if(values == null || !drainedId.equals(drainedId())){
+            return null;
+        }
+        if(voucher.getStock() != expected){
+            record("db_stock", Math.abs(voucher.getStock() - expected));
+            log.warn("秒杀券{}数据库剩余库存{}与应剩余库存{}不一致(初始库存{}，有效订单{})",
+                    voucherId, voucher.getStock(), expected, voucher.getInitStock(), orders);
+        }
+        long redisStock = 0;
+        for (String value : values) {
+            redisStock += value == null ? 0 : Long.parseLong(value);
+        }
+        long diff = expected - redisStock;
+        Long lastDiff = diff == 0 ? lastStockDiffs.remove(voucherId) : lastStockDiffs.put(voucherId, diff);
+        if(repair && diff != 0 && lastDiff != null && lastDiff == diff){
+            lastStockDiffs.remove(voucherId);
+            //INCRBY差值而不是SET，不会覆盖比较之后新的扣减
+            template.opsForValue().increment(keys.get(0), diff);
+            if(diff > 0){
+                soldOutRegistry.clear(voucherId);
+            }
+        }
+        return diff;
+    }
+
+    //没有pending消息且最后投递的消息就是最新消息时，代表所有下单、取消都已写入数据库，返回最新消息id；否则返回null
+    private String drainedId(){
+        StreamInfo.XInfoStream info = template.opsForStream().info(SECKILL_ORDER_STREAM);
+        Set<String> delivered = new HashSet<>();
+        template.opsForStream().groups(SECKILL_ORDER_STREAM).forEach(group -> {
+            if(SECKILL_ORDER_GROUP.equals(group.groupName())){
+                delivered.add(group.lastDeliveredId());
+            }
+        });
+        if(info.streamLength() > 0 && !delivered.contains(info.lastGeneratedId())){
+            return null;
+        }
+        PendingMessagesSummary summary = template.opsForStream().pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP);
+        return summary.getTotalPendingMessages() == 0 ? info.lastGeneratedId() : null;
+    }
+
+    private static String orderKey(Long voucherId, Long userId, int shards){
+        return SeckillStockShards.orderKey(voucherId, SeckillStockShards.homeShard(userId, shards), shards);
+    }
+
+    private void record(String type, long count){
+        if(count > 0){
+            registry.counter("seckill.reconcile.drift", "type", type).increment(count);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * @author cgJavaAfter
+ * @date 2023-03-12 15:02
+ */
+//本地售罄标记：优惠券售空后，本节点直接拒绝请求，不再生成订单id和执行lua脚本；通过发布订阅同步到其他节点
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry implements MessageListener {
+    private static final String SOLD_OUT = "soldOut:";
+    private static final String CLEAR = "clear:";
+
+    @Resource
+    private StringRedisTemplate template;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    //售罄标记的有效时间，过期后放行一个请求到redis重新确认，防止漏掉补库存的广播后一直拒绝
+    @Value("${hmdp.seckill.sold-out-recheck-millis:1000}")
+    private long recheckMillis;
+
+    //优惠券id -> 售罄标记的过期时间戳
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init(){
+        listenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    //判断是否售罄，只读本地内存
+    public boolean isSoldOut(Long voucherId){
+        Long expireAt = soldOut.get(voucherId);
+        if(expireAt == null){
+            return false;
+        }
+        if(expireAt < System.currentTimeMillis()){
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    //lua脚本返回库存不足时标记售罄，并广播给其他节点
+    public void markSoldOut(Long voucherId){
+        boolean marked = isSoldOut(voucherId);
+        soldOut.put(voucherId, System.currentTimeMillis() + recheckMillis);
+        if(!marked){
+            template.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + voucherId);
+        }
+    }
+
+    //补充库存后清除售罄标记，并广播给其他节点
+    public void clear(Long voucherId){
+        soldOut.remove(voucherId);
+        template.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, CLEAR + voucherId);
+    }
+
+    //接收其他节点(包括自己)的广播
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            if(body.startsWith(SOLD_OUT)){
+                soldOut.put(Long.valueOf(body.substring(SOLD_OUT.length())), System.currentTimeMillis() + recheckMillis);
+            }else if(body.startsWith(CLEAR)){
+                soldOut.remove(Long.valueOf(body.substring(CLEAR.length())));
+            }
+        } catch (NumberFormatException e) {
+            log.error("无效的售罄广播：{}", body);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARDS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * @author cgJavaAfter
+ * @date 2023-03-12 10:20
+ */
+//秒杀库存分片：热门优惠券的库存拆分到多个子key，下单集合按用户hash拆分，避免所有请求集中在同一个key上
+//分片key：seckill:stock:{<id>:<n>}和seckill:order:{<id>:<n>}；分片降低的是单个key上的竞争(热key)，不是把负载分散到集群节点
+//下单脚本还会写入全局的stream-orders、seckill:expire，stockOf按多个分片MGET，只支持单机或主从部署的redis，不支持redis cluster
+//每次下单只访问用户所在分片，分片售空时从其他分片借入库存(borrow)，不在一个脚本中跨分片访问
+@Component
+public class SeckillStockShards {
+    private static final int MAX_ABSENT_VOUCHERS = 10000;
+
+    @Resource
+    private StringRedisTemplate template;
+
+    @Resource
+    private RedisScriptRegistry scriptRegistry;
+
+    //新建秒杀券时使用的分片数，1代表不分片(沿用seckill:stock:<id>和seckill:order:<id>)
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int defaultShards;
+
+    //没有分片数记录(未预热或已淘汰)的优惠券在本地记住的时长，期间不再查询redis
+    @Value("${hmdp.seckill.shards-absent-ttl-millis:1000}")
+    private long absentTtlMillis;
+
+    //分片数在创建时确定后不再变化，本地缓存避免每次下单都查询redis
+    private final Map<Long, Integer> shardsCache = new ConcurrentHashMap<>();
+
+    //没有分片数记录的优惠券，只缓存很短的时间：防止优惠券创建前的查询导致分片数长期被固定为1；容量有限，订阅不存在的id不会无限增长
+    private LRUCache<Long, Boolean> absentCache;
+
+    @PostConstruct
+    private void init(){
+        absentCache = CacheUtil.newLRUCache(MAX_ABSENT_VOUCHERS, absentTtlMillis);
+    }
+
+    //写入秒杀库存，按配置的分片数平均拆分，余数分给前几个分片
+    public void initStock(Long voucherId, int stock){
+        int shards = Math.max(defaultShards, 1);
+        if(shards == 1){
+            template.opsForValue().set(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+        }else {
+            for (int i = 0; i < shards; i++) {
+                int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+                template.opsForValue().set(stockKey(voucherId, i, shards), String.valueOf(shardStock));
+            }
+        }
+        template.opsForValue().set(SECKILL_SHARDS_KEY + voucherId, String.valueOf(shards));
+        shardsCache.put(voucherId, shards);
+        absentCache.remove(voucherId);
+    }
+
+    //查询优惠券的分片数，没有记录的老数据视为不分片
+    public int shardsOf(Long voucherId){
+        Integer shards = shardsCache.get(voucherId);
+        if(shards != null){
+            return shards;
+        }
+        //未预热或已淘汰的优惠券，店铺页和库存推送每次都会查询，短时间内不再访问redis
+        if(absentCache.containsKey(voucherId)){
+            return 1;
+        }
+        String value = template.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        if(value == null){
+            absentCache.put(voucherId, Boolean.TRUE);
+            return 1;
+        }
+        shards = Integer.valueOf(value);
+        shardsCache.put(voucherId, shards);
+        return shards;
+    }
+
+    //一次MGET读取多个优惠券的剩余库存(各分片相加)；库存key都不存在(未预热或已淘汰)的优惠券不在返回结果中
+    public Map<Long, Integer> stockOf(Collection<Long> voucherIds){
+        List<Long> ids = new ArrayList<>(voucherIds);
+        List<Integer> shardsList = new ArrayList<>(ids.size());
+        List<String> keys = new ArrayList<>();
+        for (Long voucherId : ids) {
+            int shards = shardsOf(voucherId);
+            for (int shard = 0; shard < shards; shard++) {
+                keys.add(stockKey(voucherId, shard, shards));
+            }
+            shardsList.add(shards);
+        }
+        Map<Long, Integer> stocks = new HashMap<>();
+        if(keys.isEmpty()){
+            return stocks;
+        }
+        List<String> values = template.opsForValue().multiGet(keys);
+        if(values == null){
+            return stocks;
+        }
+        int index = 0;
+        for (int i = 0; i < ids.size(); i++) {
+            int stock = 0;
+            boolean found = false;
+            for (int shard = 0; shard < shardsList.get(i); shard++) {
+                String value = values.get(index++);
+                if(value != null){
+                    stock += Integer.parseInt(value);
+                    found = true;
+                }
+            }
+            if(found){
+                stocks.put(ids.get(i), stock);
+            }
+        }
+        return stocks;
+    }
+
+    //用户所在分片售空时，从下一个分片开始依次借入库存(有库存的分片借出一半)，加到用户所在分片；返回借入的库存数，0代表所有分片都已售空
+    //借出和加入是两个分片上的操作，中间失败只会少卖，不会超卖
+    public long borrow(Long voucherId, int homeShard, int shards){
+        for (int i = 1; i < shards; i++) {
+            int shard = (homeShard + i) % shards;
+            Long amount = scriptRegistry.execute("borrow",
+                    Collections.singletonList(stockKey(voucherId, shard, shards)));
+            if(amount != null && amount > 0){
+                template.opsForValue().increment(stockKey(voucherId, homeShard, shards), amount);
+                return amount;
+            }
+        }
+        return 0;
+    }
+
+    //用户固定落在的分片，同一用户的下单记录始终在同一个集合中，保证一人一单
+    public static int homeShard(Long userId, int shards){
+        return Math.floorMod(userId.hashCode(), shards);
+    }
+
+    public static String stockKey(Long voucherId, int shard, int shards){
+        return shards <= 1 ? SECKILL_STOCK_KEY + voucherId : SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String orderKey(Long voucherId, int shard, int shards){
+        return shards <= 1 ? SECKILL_ORDER_KEY + voucherId : SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+}
@@ -0,0 +1,242 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.map.MapUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author cgJavaAfter
+ * @date 2023-03-17 15:20
+ */
+//秒杀库存推送(SSE)：客户端订阅关心的优惠券，库存变化时推送，代替轮询/voucher/list/{shopId}
+//每个节点只有一个定时任务，每interval-millis用一次MGET读取所有被订阅优惠券的库存，只把变化的库存推送给订阅者
+//同一优惠券在一个周期内的多次扣减合并为一次推送；连接由servlet异步请求保持，不占用线程
+//发送在独立的有界线程池中进行，定时任务只负责读取库存和分发，慢连接不会阻塞定时任务；每个连接同一时间只有一个发送任务，
+//未发出的库存只保留最新值；单次发送超过send-timeout-millis或发送队列已满时断开该连接，由客户端重连
+@Slf4j
+@Component
+public class SeckillStockStream {
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    //连接超时时间，超时后客户端(EventSource)会自动重连
+    @Value("${hmdp.seckill.stock-stream.timeout-millis:600000}")
+    private long timeoutMillis;
+
+    //心跳间隔，保持代理的连接不被关闭，同时及时发现已断开的连接
+    @Value("${hmdp.seckill.stock-stream.heartbeat-millis:15000}")
+    private long heartbeatMillis;
+
+    //发送线程数和发送队列长度
+    @Value("${hmdp.seckill.stock-stream.send-threads:4}")
+    private int sendThreads;
+
+    @Value("${hmdp.seckill.stock-stream.send-queue:1024}")
+    private int sendQueue;
+
+    //单次发送的最长时间，超过后断开连接
+    @Value("${hmdp.seckill.stock-stream.send-timeout-millis:5000}")
+    private long sendTimeoutMillis;
+
+    //优惠券id -> 订阅该优惠券的连接
+    private final Map<Long, Set<Subscriber>> watchers = new ConcurrentHashMap<>();
+    //优惠券id -> 最后一次推送的库存
+    private final Map<Long, Integer> lastStock = new ConcurrentHashMap<>();
+    private long lastHeartbeat = System.currentTimeMillis();
+
+    private ExecutorService sender;
+
+    @PostConstruct
+    private void init(){
+        sender = new ThreadPoolExecutor(sendThreads, sendThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(sendQueue), new NamedThreadFactory("seckill-stock-stream-", true));
+    }
+
+    @PreDestroy
+    private void destroy(){
+        sender.shutdownNow();
+    }
+
+    //订阅优惠券库存，立即推送已知的库存，之后只推送变化
+    public SseEmitter subscribe(Collection<Long> voucherIds){
+        SseEmitter emitter = new SseEmitter(timeoutMillis);
+        Subscriber subscriber = new Subscriber(emitter, voucherIds);
+        Runnable remove = () -> unsubscribe(subscriber);
+        emitter.onCompletion(remove);
+        emitter.onTimeout(remove);
+        emitter.onError(e -> remove.run());
+        for (Long voucherId : voucherIds) {
+            watchers.computeIfAbsent(voucherId, id -> ConcurrentHashMap.newKeySet()).add(subscriber);
+            Integer stock = lastStock.get(voucherId);
+            if(stock != null){
+                subscriber.pending.put(voucherId, stock);
+            }
+        }
+        dispatch(subscriber);
+        return emitter;
+    }
+
+    private void unsubscribe(Subscriber subscriber){
+        for (Long voucherId : subscriber.voucherIds) {
+            watchers.computeIfPresent(voucherId, (id, subscribers) -> {
+                subscribers.remove(subscriber);
+                return subscribers.isEmpty() ? null : subscribers;
+            });
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.stock-stream.interval-millis:200}")
+    public void push(){
+        try {
+            //1、没有订阅者的优惠券不再读取
+            lastStock.keySet().retainAll(watchers.keySet());
+            if(watchers.isEmpty()){
+                return;
+            }
+            //2、断开发送超时的连接
+            long now = System.currentTimeMillis();
+            Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+            watchers.values().forEach(subscribers::addAll);
+            for (Subscriber subscriber : subscribers) {
+                long since = subscriber.sendingSince;
+                if(since > 0 && now - since > sendTimeoutMillis){
+                    drop(subscriber, "发送超时");
+                }
+            }
+            //3、一次MGET读取所有被订阅优惠券的库存，把变化的库存交给发送线程
+            Map<Long, Integer> stocks = seckillStockShards.stockOf(watchers.keySet());
+            Set<Subscriber> changed = ConcurrentHashMap.newKeySet();
+            stocks.forEach((voucherId, stock) -> {
+                Integer last = lastStock.put(voucherId, stock);
+                if(!stock.equals(last)){
+                    Set<Subscriber> watching = watchers.get(voucherId);
+                    if(watching != null){
+                        watching.forEach(subscriber -> {
+                            subscriber.pending.put(voucherId, stock);
+                            changed.add(subscriber);
+                        });
+                    }
+                }
+            });
+            //4、定时发送心跳
+            if(now - lastHeartbeat >= heartbeatMillis){
+                lastHeartbeat = now;
+                for (Subscriber subscriber : subscribers) {
+                    subscriber.heartbeat = true;
+                    changed.add(subscriber);
+                }
+            }
+            changed.forEach(this::dispatch);
+        } catch (Exception e) {
+            log.error("推送秒杀库存异常", e);
+        }
+    }
+
+    //每个连接同一时间只提交一个发送任务，队列满时断开连接
+    private void dispatch(Subscriber subscriber){
+        if(subscriber.dropped.get() || !subscriber.scheduled.compareAndSet(false, true)){
+            return;
+        }
+        try {
+            sender.execute(() -> flush(subscriber));
+        } catch (RejectedExecutionException e) {
+            subscriber.scheduled.set(false);
+            drop(subscriber, "发送队列已满");
+        }
+    }
+
+    private void flush(Subscriber subscriber){
+        try {
+            Iterator<Map.Entry<Long, Integer>> iterator = subscriber.pending.entrySet().iterator();
+            while (iterator.hasNext() && !subscriber.dropped.get()){
+                Map.Entry<Long, Integer> entry = iterator.next();
+                iterator.remove();
+                send(subscriber, SseEmitter.event()
+                        .name("stock")
+                        .data(MapUtil.builder().put("voucherId", entry.getKey()).put("stock", entry.getValue()).build()));
+            }
+            if(subscriber.heartbeat && !subscriber.dropped.get()){
+                subscriber.heartbeat = false;
+                send(subscriber, SseEmitter.event().comment("heartbeat"));
+            }
+        } catch (IOException | IllegalStateException e) {
+            //发送失败说明客户端已断开，结束连接后由onError/onCompletion移除订阅
+            subscriber.dropped.set(true);
+            complete(subscriber, e);
+            return;
+        } finally {
+            subscriber.sendingSince = 0;
+            subscriber.scheduled.set(false);
+        }
+        if(subscriber.dropped.get()){
+            //发送超时被断开的连接，在发送线程中结束，避免定时任务等待正在进行的发送
+            complete(subscriber, new IOException("库存推送发送超时"));
+        } else if(!subscriber.pending.isEmpty()){
+            //发送期间有新的库存变化
+            dispatch(subscriber);
+        }
+    }
+
+    private void send(Subscriber subscriber, SseEmitter.SseEventBuilder event) throws IOException {
+        subscriber.sendingSince = System.currentTimeMillis();
+        subscriber.emitter.send(event);
+        subscriber.sendingSince = 0;
+    }
+
+    //移除订阅，不再发送；有发送任务时由发送线程结束连接，否则直接结束
+    private void drop(Subscriber subscriber, String reason){
+        if(!subscriber.dropped.compareAndSet(false, true)){
+            return;
+        }
+        unsubscribe(subscriber);
+        log.warn("库存推送连接{}，断开连接", reason);
+        if(!subscriber.scheduled.get()){
+            complete(subscriber, new IOException("库存推送" + reason));
+        }
+    }
+
+    //发送线程和定时任务都可能结束连接，只结束一次
+    private static void complete(Subscriber subscriber, Exception e){
+        if(subscriber.completed.compareAndSet(false, true)){
+            subscriber.emitter.completeWithError(e);
+        }
+    }
+
+    private static class Subscriber {
+        private final SseEmitter emitter;
+        private final Collection<Long> voucherIds;
+        //待发送的库存，只保留最新值
+        private final Map<Long, Integer> pending = new ConcurrentHashMap<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean dropped = new AtomicBoolean();
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private volatile boolean heartbeat;
+        //当前发送开始的时间，0代表没有正在进行的发送
+        private volatile long sendingSince;
+
+        private Subscriber(SseEmitter emitter, Collection<Long> voucherIds){
+            this.emitter = emitter;
+            this.voucherIds = voucherIds;
+        }
+    }
+}
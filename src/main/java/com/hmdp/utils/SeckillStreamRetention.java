@@ -0,0 +1,91 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+
+/**
+ * @author cgJavaAfter
+ * @date 2023-03-14 15:20
+ */
+//stream-orders的保留策略：已被所有消费者组ACK的消息不再有用，定时通过XTRIM MINID裁剪，
+//只保留最早未ACK(pending或尚未投递)的消息及之后的消息；脚本中的XADD MAXLEN ~只作为兜底上限
+//消息队列最低支持redis 5.0：redis 6.2以下没有MINID，脚本改为统计需保留的消息数后XTRIM MAXLEN ~
+@Slf4j
+@Component
+public class SeckillStreamRetention {
+    @Resource
+    private StringRedisTemplate template;
+
+    @Resource
+    private SeckillOrderMetrics orderMetrics;
+
+    //spring data redis没有提供XTRIM MINID，通过lua脚本trim.lua执行
+    @Resource
+    private RedisScriptRegistry scriptRegistry;
+
+    //redis 6.2以下需保留的消息超过该数量时跳过本次裁剪
+    private static final int FALLBACK_SCAN_LIMIT = 10000;
+
+    //定时裁剪
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order.trim-interval-millis:60000}")
+    public void trim(){
+        try {
+            //1、计算所有消费者组中最早未ACK的消息id
+            String minId = oldestUnackedId();
+            if(minId == null){
+                return;
+            }
+            //2、近似裁剪(~)，只删除整个宏节点，开销低；比minId小的已ACK消息最终都会被删除
+            Long trimmed = scriptRegistry.execute("trim", Collections.singletonList(SECKILL_ORDER_STREAM),
+                    minId, String.valueOf(FALLBACK_SCAN_LIMIT));
+            long count = trimmed == null ? 0L : trimmed;
+            //3、记录裁剪数量
+            if(count > 0){
+                orderMetrics.trimmed(count);
+                log.info("stream-orders裁剪{}条已确认消息，保留{}之后的消息", count, minId);
+            }
+        } catch (Exception e) {
+            log.warn("stream-orders裁剪失败：{}", e.getMessage());
+        }
+    }
+
+    //每个组的边界：有pending消息时为最小的pending id，否则为last-delivered-id；取所有组中最小的
+    //没有消费者组时返回null，此时不裁剪，避免删掉还没有消费者读取的订单
+    private String oldestUnackedId(){
+        List<String> boundaries = new ArrayList<>();
+        template.opsForStream().groups(SECKILL_ORDER_STREAM).forEach(group -> {
+            if(group.pendingCount() > 0){
+                PendingMessagesSummary summary = template.opsForStream().pending(SECKILL_ORDER_STREAM, group.groupName());
+                boundaries.add(summary.minMessageId());
+            }else {
+                boundaries.add(group.lastDeliveredId());
+            }
+        });
+        String minId = null;
+        for (String id : boundaries) {
+            if(minId == null || compareId(id, minId) < 0){
+                minId = id;
+            }
+        }
+        //从未投递过任何消息的组，last-delivered-id为0-0，无需裁剪
+        return "0-0".equals(minId) ? null : minId;
+    }
+
+    //按 毫秒时间戳-序号 比较消息id
+    private static int compareId(String a, String b){
+        String[] x = a.split("-");
+        String[] y = b.split("-");
+        int result = Long.compare(Long.parseLong(x[0]), Long.parseLong(y[0]));
+        return result != 0 ? result : Long.compare(Long.parseLong(x[1]), Long.parseLong(y[1]));
+    }
+}
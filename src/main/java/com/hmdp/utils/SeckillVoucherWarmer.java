@@ -0,0 +1,231 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.mapper.VoucherMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.CACHE_VOUCHER_LIST_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ARCHIVE_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_BUCKET_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_REVERSED_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARDS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_WARMED_KEY;
+
+/**
+ * @author cgJavaAfter
+ * @date 2023-03-17 09:40
+ */
+//秒杀预热和淘汰：开始前ahead-millis把库存、时间窗口写入redis，并缓存到各节点本地；结束evict-delay-millis后归档并删除该优惠券的所有key
+//下单脚本根据seckill:voucher:<id>中的时间窗口拒绝未开始、已结束的请求；本地窗口让提前点击的请求不访问redis和数据库
+@Slf4j
+@Component
+public class SeckillVoucherWarmer {
+    @Resource
+    private StringRedisTemplate template;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private VoucherMapper voucherMapper;
+
+    //秒杀开始前多久预热
+    @Value("${hmdp.seckill.warm.ahead-millis:300000}")
+    private long aheadMillis;
+
+    //秒杀结束后多久淘汰，期间仍可查询库存、处理消息队列中剩余的订单
+    @Value("${hmdp.seckill.warm.evict-delay-millis:3600000}")
+    private long evictDelayMillis;
+
+    //预热认领后超过此时间仍未完成，视为预热节点宕机，删除后重新预热
+    private static final long WARM_CLAIM_TIMEOUT_MILLIS = 60000;
+
+    //本地时间窗口：优惠券id -> [开始时间戳, 结束时间戳]
+    private final Map<Long, long[]> windows = new ConcurrentHashMap<>();
+
+    //秒杀未开始，只读本地内存；未预热的优惠券返回false，交给脚本判断
+    public boolean notStarted(Long voucherId, long now){
+        long[] window = windows.get(voucherId);
+        return window != null && now < window[0];
+    }
+
+    public boolean ended(Long voucherId, long now){
+        long[] window = windows.get(voucherId);
+        return window != null && now > window[1];
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.warm.interval-millis:10000}")
+    public void refresh(){
+        try {
+            warmUpcoming();
+            evictEnded();
+        } catch (Exception e) {
+            log.error("秒杀预热/淘汰异常", e);
+        }
+    }
+
+    //查询即将开始或进行中的秒杀券并预热，每个节点都会把时间窗口缓存到本地
+    private void warmUpcoming(){
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .le("begin_time", now.plusNanos(aheadMillis * 1_000_000))
+                .gt("end_time", now)
+                .list();
+        for (SeckillVoucher voucher : vouchers) {
+            warm(voucher);
+        }
+    }
+
+    //新建秒杀券时调用，即将开始的立即预热，其余的由定时任务在开始前预热
+    public void warmIfDue(SeckillVoucher voucher){
+        if(toMillis(voucher.getBeginTime()) <= System.currentTimeMillis() + aheadMillis){
+            warm(voucher);
+        }
+    }
+
+    private void warm(SeckillVoucher voucher){
+        Long voucherId = voucher.getVoucherId();
+        long begin = toMillis(voucher.getBeginTime());
+        long end = toMillis(voucher.getEndTime());
+        windows.put(voucherId, new long[]{begin, end});
+        //1、通过HSETNX认领预热，多个节点只有一个写入redis
+        String metaKey = SECKILL_VOUCHER_KEY + voucherId;
+        long now = System.currentTimeMillis();
+        if(!Boolean.TRUE.equals(template.opsForHash().putIfAbsent(metaKey, "warmedAt", String.valueOf(now)))){
+            Object warmedAt = template.opsForHash().get(metaKey, "warmedAt");
+            if(template.opsForHash().get(metaKey, "end") == null && warmedAt != null
+                    && now - Long.parseLong(warmedAt.toString()) > WARM_CLAIM_TIMEOUT_MILLIS){
+                template.delete(metaKey);
+            }
+            return;
+        }
+        //2、写入库存；库存已存在(例如预热前就已创建)时不覆盖，避免覆盖已扣减的库存
+        if(!Boolean.TRUE.equals(template.hasKey(SECKILL_SHARDS_KEY + voucherId))){
+            seckillStockShards.initStock(voucherId, voucher.getStock());
+        }
+        //3、最后写入时间窗口，写入前脚本会按未开始拒绝
+        Map<String, String> meta = new HashMap<>();
+        meta.put("begin", String.valueOf(begin));
+        meta.put("end", String.valueOf(end));
+        meta.put("stock", String.valueOf(voucher.getStock()));
+        template.opsForHash().putAll(metaKey, meta);
+        template.opsForSet().add(SECKILL_WARMED_KEY, voucherId.toString());
+        soldOutRegistry.clear(voucherId);
+        log.info("秒杀券{}预热完成，库存：{}", voucherId, voucher.getStock());
+    }
+
+    //已预热的优惠券结束evict-delay-millis后归档并删除
+    private void evictEnded(){
+        long now = System.currentTimeMillis();
+        windows.entrySet().removeIf(entry -> entry.getValue()[1] + evictDelayMillis < now);
+        Set<String> warmed = template.opsForSet().members(SECKILL_WARMED_KEY);
+        if(warmed == null){
+            return;
+        }
+        for (String id : warmed) {
+            Long voucherId = Long.valueOf(id);
+            Long end = endOf(voucherId);
+            if(end == null || end + evictDelayMillis >= now){
+                continue;
+            }
+            //SREM认领淘汰，多个节点只有一个执行
+            Long removed = template.opsForSet().remove(SECKILL_WARMED_KEY, id);
+            if(removed != null && removed > 0){
+                evict(voucherId);
+            }
+        }
+    }
+
+    //结束时间：优先读redis中的时间窗口；预热未完成或时间窗口丢失时用本地缓存，再用数据库的end_time；
+    //数据库已没有该秒杀券时返回0直接淘汰，无法确定结束时间时返回null，本轮不淘汰
+    private Long endOf(Long voucherId){
+        Object end = template.opsForHash().get(SECKILL_VOUCHER_KEY + voucherId, "end");
+        if(end != null){
+            return Long.parseLong(end.toString());
+        }
+        long[] window = windows.get(voucherId);
+        if(window != null){
+            return window[1];
+        }
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if(voucher == null){
+            return 0L;
+        }
+        return voucher.getEndTime() == null ? null : toMillis(voucher.getEndTime());
+    }
+
+    private void evict(Long voucherId){
+        int shards = seckillStockShards.shardsOf(voucherId);
+        List<String> stockKeys = new ArrayList<>(shards);
+        List<String> orderKeys = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            stockKeys.add(SeckillStockShards.stockKey(voucherId, shard, shards));
+            orderKeys.add(SeckillStockShards.orderKey(voucherId, shard, shards));
+        }
+        //1、归档：剩余库存、下单人数、撤销订单数写入归档队列
+        long remaining = 0;
+        List<String> values = template.opsForValue().multiGet(stockKeys);
+        if(values != null){
+            for (String value : values) {
+                remaining += value == null ? 0 : Long.parseLong(value);
+            }
+        }
+        long buyers = 0;
+        for (String orderKey : orderKeys) {
+            Long size = template.opsForSet().size(orderKey);
+            buyers += size == null ? 0 : size;
+        }
+        Long reversed = template.opsForSet().size(SECKILL_REVERSED_KEY + voucherId);
+        Map<String, String> archive = new HashMap<>();
+        template.opsForHash().entries(SECKILL_VOUCHER_KEY + voucherId)
+                .forEach((key, value) -> archive.put(key.toString(), value.toString()));
+        archive.put("voucherId", voucherId.toString());
+        archive.put("remaining", String.valueOf(remaining));
+        archive.put("buyers", String.valueOf(buyers));
+        archive.put("reversed", String.valueOf(reversed == null ? 0 : reversed));
+        archive.put("archivedAt", String.valueOf(System.currentTimeMillis()));
+        template.opsForStream().add(StreamRecords.newRecord().in(SECKILL_ARCHIVE_STREAM).ofMap(archive));
+        //2、删除该优惠券的所有key
+        List<String> keys = new ArrayList<>(stockKeys);
+        keys.addAll(orderKeys);
+        keys.add(SECKILL_SHARDS_KEY + voucherId);
+        keys.add(SECKILL_REVERSED_KEY + voucherId);
+        keys.add(SECKILL_BUCKET_KEY + voucherId);
+        keys.add(SECKILL_VOUCHER_KEY + voucherId);
+        template.delete(keys);
+        //3、淘汰后店铺页改为使用数据库库存，删除店铺优惠券列表缓存，避免继续展示缓存时的库存
+        Voucher voucher = voucherMapper.selectById(voucherId);
+        if(voucher != null && voucher.getShopId() != null){
+            template.delete(CACHE_VOUCHER_LIST_KEY + voucher.getShopId());
+        }
+        log.info("秒杀券{}已归档并淘汰，剩余库存：{}，下单人数：{}", voucherId, remaining, buyers);
+    }
+
+    private static long toMillis(LocalDateTime time){
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
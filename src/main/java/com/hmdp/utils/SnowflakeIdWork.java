@@ -0,0 +1,147 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+
+/**
+ * @author cgJavaAfter
+ * @date 2023-03-12 20:41
+ */
+//纯内存的雪花id生成器，沿用31位时间戳+32位序列号的结构，序列号拆分为1位标记+10位workerId+21位计数
+//标记位固定为1，RedisIdWork每天的序列号小于2^31标记位为0，两种模式(包括滚动切换时同时运行)生成的id不会冲突
+//workerId启动时通过redis租用并定时续期，生成id时不访问redis，redis短暂不可用不影响发号
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.id.mode", havingValue = "snowflake")
+public class SnowflakeIdWork extends RedisIdWork {
+    private static final long BEGIN_TIMESTAMP = 1640995200L;//初始时间戳(20220101)
+
+    private static final int COUNT_BITS = 32;//序列号位数
+    private static final int WORKER_BITS = 10;//workerId位数
+    private static final int SEQUENCE_BITS = COUNT_BITS - 1 - WORKER_BITS;//每秒计数位数，最高位为雪花模式标记
+    private static final long SNOWFLAKE_FLAG = 1L << (COUNT_BITS - 1);
+
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+
+    //与RedisIdWork的时间基准一致(本地时间按UTC计算秒数)，id仍按时间递增；启动时固定偏移，夏令时切换不会被当作时钟回拨
+    private static final long ZONE_OFFSET_SECONDS =
+            ZoneId.systemDefault().getRules().getOffset(Instant.now()).getTotalSeconds();
+
+    @Resource
+    private StringRedisTemplate template;
+
+    @Resource
+    private RedisScriptRegistry scriptRegistry;
+
+    //workerId租约时长，redis故障时间小于此值时不会丢失workerId
+    @Value("${hmdp.id.worker-lease-seconds:300}")
+    private long leaseSeconds;
+
+    //允许的最大时钟回拨秒数，范围内继续使用上次的时间戳发号，超过则拒绝发号
+    @Value("${hmdp.id.max-backward-seconds:5}")
+    private long maxBackwardSeconds;
+
+    private final String token = UUID.randomUUID().toString(true);
+
+    private final ScheduledExecutorService leaseExecutor = Executors.newSingleThreadScheduledExecutor(
+            new NamedThreadFactory("id-worker-lease-", true));
+
+    private volatile long workerId;
+
+    //高位为上次发号的秒数，低22位为该秒内的计数，通过CAS整体更新
+    private final AtomicLong state = new AtomicLong();
+
+    @PostConstruct
+    private void leaseWorker(){
+        workerId = leaseWorkerId();
+        log.info("雪花id生成器租用workerId：{}", workerId);
+        long period = Math.max(leaseSeconds / 3, 1);
+        leaseExecutor.scheduleAtFixedRate(this::renewWorker, period, period, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void releaseWorker(){
+        leaseExecutor.shutdownNow();
+        try {
+            String key = ID_WORKER_KEY + workerId;
+            if(token.equals(template.opsForValue().get(key))){
+                template.delete(key);
+            }
+        } catch (Exception e) {
+            log.warn("释放workerId失败，等待租约过期：{}", workerId);
+        }
+    }
+
+    @Override
+    public long nextId(String keyPrefix){
+        long now = System.currentTimeMillis() / 1000 + ZONE_OFFSET_SECONDS - BEGIN_TIMESTAMP;
+        while (true){
+            long current = state.get();
+            long second = current >>> SEQUENCE_BITS;
+            long sequence = current & MAX_SEQUENCE;
+            long next;
+            if(now > second){
+                next = now << SEQUENCE_BITS;
+            }else {
+                if(second - now > maxBackwardSeconds){
+                    throw new IllegalStateException("时钟回拨" + (second - now) + "秒，拒绝生成id");
+                }
+                //同一秒(或小幅回拨)内继续计数，计数用完时借用下一秒
+                next = sequence < MAX_SEQUENCE ? current + 1 : (second + 1) << SEQUENCE_BITS;
+            }
+            if(state.compareAndSet(current, next)){
+                long timestamp = next >>> SEQUENCE_BITS;
+                return timestamp << COUNT_BITS | SNOWFLAKE_FLAG | workerId << SEQUENCE_BITS | (next & MAX_SEQUENCE);
+            }
+        }
+    }
+
+    //从随机位置开始尝试，SET NX EX租用第一个空闲的workerId
+    private long leaseWorkerId(){
+        long start = RandomUtil.randomLong(MAX_WORKER_ID + 1);
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            Boolean success = template.opsForValue().setIfAbsent(ID_WORKER_KEY + id, token, leaseSeconds, TimeUnit.SECONDS);
+            if(Boolean.TRUE.equals(success)){
+                return id;
+            }
+        }
+        throw new IllegalStateException("没有可用的workerId");
+    }
+
+    //续期租约：校验token和PEXPIRE在lua脚本中原子执行；租约已被其他节点占用时重新租用，redis不可用时继续使用当前workerId
+    private void renewWorker(){
+        try {
+            Long renewed = scriptRegistry.execute("renew", Collections.singletonList(ID_WORKER_KEY + workerId),
+                    token, String.valueOf(TimeUnit.SECONDS.toMillis(leaseSeconds)));
+            if(renewed != null && renewed == 1){
+                return;
+            }
+            long lost = workerId;
+            workerId = leaseWorkerId();
+            log.error("workerId {} 已被其他节点占用，重新租用：{}", lost, workerId);
+        } catch (Exception e) {
+            log.warn("workerId续期失败，继续使用：{}", workerId, e);
+        }
+    }
+}
@@ -5,4 +5,15 @@ public class SystemConstants {
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    //一个库存推送连接最多订阅的优惠券数
+    public static final int MAX_STOCK_STREAM_VOUCHERS = 20;
+    //秒杀订单异步处理状态：0处理中，1下单成功，2下单失败
+    public static final int SECKILL_ORDER_PENDING = 0;
+    public static final int SECKILL_ORDER_SUCCESS = 1;
+    public static final int SECKILL_ORDER_FAIL = 2;
+    //tb_voucher_order.status：1未支付，2已支付，4已取消，6已退款；取消和退款的用户仍保留在下单集合中，一人只能抢购一次
+    public static final int VOUCHER_ORDER_UNPAID = 1;
+    public static final int VOUCHER_ORDER_PAID = 2;
+    public static final int VOUCHER_ORDER_CANCELLED = 4;
+    public static final int VOUCHER_ORDER_REFUNDED = 6;
 }
@@ -0,0 +1,7 @@
+-- 手动迁移：项目不自动建表，部署此版本前需在线上库执行本脚本；压测使用的 src/test/resources/loadtest/schema.sql 已包含该字段
+-- 秒杀券初始库存：对账时按 初始库存 - 有效订单数 计算redis应剩余的库存，不再以数据库剩余库存为准
+ALTER TABLE `tb_seckill_voucher` ADD COLUMN `init_stock` int DEFAULT NULL COMMENT '初始库存' AFTER `stock`;
+-- 已有的秒杀券按 剩余库存 + 未取消、未退款的订单数 回填
+UPDATE `tb_seckill_voucher` sv SET sv.`init_stock` = sv.`stock` + (
+    SELECT COUNT(*) FROM `tb_voucher_order` vo WHERE vo.`voucher_id` = sv.`voucher_id` AND vo.`status` NOT IN (4, 6)
+);
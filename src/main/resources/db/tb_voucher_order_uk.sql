@@ -0,0 +1,4 @@
+-- 手动迁移：项目不自动建表，部署此版本前需在线上库执行本脚本；压测使用的 src/test/resources/loadtest/schema.sql 已包含该索引
+-- 一人一单唯一索引：订单消费者依赖此索引通过insert ignore保证幂等，不再使用分布式锁和count查询
+-- 执行前需先清理已有的重复订单
+ALTER TABLE `tb_voucher_order` ADD UNIQUE KEY `uk_user_voucher` (`user_id`, `voucher_id`);
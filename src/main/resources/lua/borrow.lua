@@ -0,0 +1,10 @@
+-- 从其他分片借入库存：用户所在分片售空时，从有库存的分片取走一半(向上取整)，由java加到用户所在分片
+-- KEYS[1]：借出库存的分片key
+-- 返回借出的库存数，0代表该分片已售空
+local stock = tonumber(redis.call('get', KEYS[1]) or '0')
+if(stock <= 0) then
+    return 0
+end
+local amount = math.ceil(stock / 2)
+redis.call('incrby', KEYS[1], -amount)
+return amount
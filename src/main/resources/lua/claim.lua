@@ -0,0 +1,5 @@
+-- 认领一条pending消息(XCLAIM JUSTID)：空闲时间不足minIdle说明已被其他节点认领，不会重复认领
+-- KEYS[1]：消息队列key；ARGV[1]：消费者组；ARGV[2]：认领的消费者；ARGV[3]：最小空闲毫秒数；ARGV[4]：消息id
+-- 返回1代表认领成功，0代表未认领
+local claimed = redis.call('xclaim', KEYS[1], ARGV[1], ARGV[2], ARGV[3], ARGV[4], 'JUSTID')
+return #claimed
@@ -0,0 +1,13 @@
+-- 续期workerId租约：租约仍属于本节点时PEXPIRE；租约已过期(redis故障期间)时重新占用
+-- KEYS[1]：workerId租约key icr:worker:<workerId>；ARGV[1]：本节点token；ARGV[2]：租约时长(毫秒)
+-- 返回1代表续期成功，0代表租约已被其他节点占用
+local owner = redis.call('get', KEYS[1])
+if(owner == ARGV[1]) then
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return 1
+end
+if(not owner) then
+    redis.call('set', KEYS[1], ARGV[1], 'PX', ARGV[2])
+    return 1
+end
+return 0
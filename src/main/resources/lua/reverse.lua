@@ -0,0 +1,30 @@
+-- 撤销订单占用的库存(取消、退款)：每个订单只归还一次库存，用户保留在下单集合中(一人只能抢购一次)
+-- KEYS[1]：用户所在分片的库存key；KEYS[2]：已撤销订单集合 seckill:reversed:<voucherId>；KEYS[3]：秒杀券信息 seckill:voucher:<voucherId>
+-- ARGV[1]：订单id；ARGV[2]：用户id；ARGV[3]：优惠券id
+-- ARGV[4]：订单目标状态，写入消息队列由消费者修改数据库；0代表只归还redis库存(数据库已由调用方修改)
+-- ARGV[5]：当前毫秒时间戳；ARGV[6]：消息队列长度上限，0代表不限制
+-- 返回0代表撤销成功，1代表订单已撤销过
+local orderId = ARGV[1]
+local targetStatus = tonumber(ARGV[4])
+local maxLen = tonumber(ARGV[6] or '0')
+
+-- 1、秒杀券已淘汰时redis中没有库存，只需发送撤销消息；数据库按订单状态条件修改，重复的消息不会重复归还
+if(redis.call('exists', KEYS[3]) == 1) then
+    -- 1.1记录已撤销的订单，已存在说明库存已归还过
+    if(redis.call('sadd', KEYS[2], orderId) == 0) then
+        return 1
+    end
+    -- 1.2归还库存
+    redis.call('incrby', KEYS[1], 1)
+end
+-- 3、和下单一样通过消息队列异步修改数据库状态和库存
+if(targetStatus > 0) then
+    if(maxLen > 0) then
+        redis.call('xadd', 'stream-orders', 'MAXLEN', '~', maxLen, '*', 'type', 'reverse',
+                'id', orderId, 'userId', ARGV[2], 'voucherId', ARGV[3], 'status', ARGV[4], 'time', ARGV[5])
+    else
+        redis.call('xadd', 'stream-orders', '*', 'type', 'reverse',
+                'id', orderId, 'userId', ARGV[2], 'voucherId', ARGV[3], 'status', ARGV[4], 'time', ARGV[5])
+    end
+end
+return 0
@@ -0,0 +1,8 @@
+-- 回滚一个秒杀资格：用户仍在下单集合中时移出集合并归还一个库存，保证库存只会被归还一次
+-- KEYS[1]：库存key；KEYS[2]：下单集合key；ARGV[1]：用户id
+-- 返回1代表已回滚，0代表用户不在集合中(已回滚过)
+if(redis.call('srem', KEYS[2], ARGV[1]) == 1) then
+    redis.call('incrby', KEYS[1], 1)
+    return 1
+end
+return 0
@@ -0,0 +1,82 @@
+---
+--- Generated by EmmyLua(https://github.com/EmmyLua)
+--- Created by ADMIN.
+--- DateTime: 2023/3/9 15:13
+---
+
+-- 1、判断库存是否充足
+-- 1.1声明参数：脚本访问的key都由java通过KEYS传入；脚本同时访问分片key和全局的消息队列、超时队列，
+-- 这些key不在同一个slot，只支持单机或主从部署的redis，不支持redis cluster
+-- KEYS[1]：用户所在分片的库存key；KEYS[2]：用户所在分片的下单集合key；KEYS[3]：秒杀券信息 seckill:voucher:<voucherId>
+-- KEYS[4]：令牌桶 seckill:bucket:<voucherId>；KEYS[5]：订单消息队列 stream-orders；KEYS[6]：超时队列 seckill:expire
+local voucherId = ARGV[1] -- 优惠券id
+local userId = ARGV[2] -- 用户id
+local orderId = ARGV[3] -- 订单id
+
+local shards = tonumber(ARGV[4] or '1') -- 库存分片数，1代表不分片，用于估算总库存
+local now = tonumber(ARGV[5] or '0') -- 当前毫秒时间戳，由java传入
+local rateMultiple = tonumber(ARGV[6] or '0') -- 令牌桶速率为剩余库存的倍数，0代表不限流
+local maxLen = tonumber(ARGV[7] or '0') -- 消息队列长度上限，0代表不限制
+local expireAt = tonumber(ARGV[8] or '0') -- 未支付订单的超时取消时间戳(毫秒)，0代表不超时取消
+
+local stockKey = KEYS[1] -- 库存key
+local orderKey = KEYS[2] -- 订单key
+
+-- 2、脚本业务
+-- 2.0判断是否在秒杀时间内：时间窗口由SeckillVoucherWarmer预热写入，未预热、未开始、已结束都返回4
+local window = redis.call('hmget', KEYS[3], 'begin', 'end')
+if(not window[1] or not window[2] or now < tonumber(window[1]) or now > tonumber(window[2])) then
+    return 4
+end
+-- 2.1判断库存是否充足，判断前转化为number；分片模式下只扣减用户所在分片，分片售空后由java从其他分片借入库存再重试
+local stock = tonumber(redis.call('get',stockKey) or '0')
+if(stock <= 0) then
+    -- 库存不足返回1
+    return 1
+end
+-- 分片模式下按当前分片估算总库存
+stock = stock * shards
+-- 2.2令牌桶限流：每个优惠券一个桶，每秒生成 剩余库存*倍数 个令牌，桶容量相同；令牌不足返回3
+if(rateMultiple > 0) then
+    local rate = stock * rateMultiple
+    local bucketKey = KEYS[4]
+    local bucket = redis.call('hmget', bucketKey, 'tokens', 'ts')
+    local tokens = tonumber(bucket[1]) or rate
+    local ts = tonumber(bucket[2]) or now
+    -- 各节点时钟有偏差时不回退时间
+    if(now > ts) then
+        tokens = math.min(rate, tokens + (now - ts) * rate / 1000)
+        ts = now
+    end
+    if(tokens < 1) then
+        redis.call('hmset', bucketKey, 'tokens', tokens, 'ts', ts)
+        return 3
+    end
+    redis.call('hmset', bucketKey, 'tokens', tokens - 1, 'ts', ts)
+    redis.call('pexpire', bucketKey, 60000)
+end
+-- 2.3判断用户是否下单
+if(redis.call('sismember',orderKey,userId) == 1) then
+    -- 存在则重复下单，返回2
+    return 2
+end
+-- 3.2最后都不满足的进行优惠券库存的扣减和下单操作
+redis.call('incrby',stockKey,-1) -- 扣减库存
+redis.call('sadd',orderKey,userId) -- 下单保存
+
+-- 4.经历上面校验后都有购买资格，将其发送至消息队列；将voucherId改为Id是为了对应实体类
+-- 设置了上限时近似裁剪(MAXLEN ~)，只作为兜底，日常由SeckillStreamRetention按最早未ACK的消息裁剪
+if(maxLen > 0) then
+    redis.call("xadd",KEYS[5],"MAXLEN","~",maxLen,"*","id",orderId,"userId",userId,"voucherId",voucherId)
+else
+    redis.call("xadd",KEYS[5],"*","id",orderId,"userId",userId,"voucherId",voucherId)
+end
+-- 5.写入超时队列，score为超时时间，由OrderExpiryWheel到期取消未支付订单
+if(expireAt > 0) then
+    redis.call('zadd',KEYS[6],expireAt,orderId)
+end
+
+return 0 -- 最后在java模块进行判断，!0皆为未下单成功操作
+
+
+
@@ -0,0 +1,16 @@
+-- 按最早未ACK的消息id近似裁剪消息队列，返回删除的消息数量
+-- KEYS[1]：消息队列key；ARGV[1]：最早未ACK的消息id，比它小的消息都会被删除(~近似，按宏节点删除)
+-- ARGV[2]：redis 6.2以下时最多统计的保留消息数
+-- 1、redis 6.2及以上使用XTRIM MINID
+local trimmed = redis.pcall('xtrim', KEYS[1], 'MINID', '~', ARGV[1])
+if(type(trimmed) == 'number') then
+    return trimmed
+end
+-- 2、redis 6.2以下没有MINID：统计minId及之后的消息数，换算为XTRIM MAXLEN ~，保留的消息不少于该数量，不会删除未ACK的消息
+-- 需要保留的消息超过ARGV[2]条时本次不裁剪，避免XRANGE返回过多消息
+local limit = tonumber(ARGV[2])
+local keep = #redis.call('xrange', KEYS[1], ARGV[1], '+', 'COUNT', limit)
+if(keep >= limit) then
+    return 0
+end
+return redis.call('xtrim', KEYS[1], 'MAXLEN', '~', keep)
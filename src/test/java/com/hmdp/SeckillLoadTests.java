@@ -0,0 +1,227 @@
+package com.hmdp;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillReconciler;
+import com.hmdp.utils.SeckillStockShards;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.support.DefaultSingletonBeanRegistry;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import redis.embedded.RedisServer;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+
+/**
+ * 秒杀链路压测：内嵌redis + H2内存数据库启动完整应用，并发请求/voucher-order/seckill/{id}，
+ * 输出吞吐量、p50/p99/p999延迟、超卖/少卖数量和消息队列消费完成耗时，用于在单机上对比秒杀链路的改动。
+ * 默认不执行，运行方式：mvn test -Dtest=SeckillLoadTests -Dloadtest=true [-Dloadtest.buyers=.. -Dloadtest.stock=.. -Dloadtest.concurrency=..]
+ */
+@Slf4j
+@ActiveProfiles("loadtest")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ContextConfiguration(initializers = SeckillLoadTests.EmbeddedRedisInitializer.class)
+@DirtiesContext//测试结束后立即关闭容器并停止内嵌redis
+@EnabledIfSystemProperty(named = "loadtest", matches = "true")
+class SeckillLoadTests {
+    private static final int BUYERS = Integer.getInteger("loadtest.buyers", 5000);
+    private static final int STOCK = Integer.getInteger("loadtest.stock", 1000);
+    private static final int CONCURRENCY = Integer.getInteger("loadtest.concurrency", 64);
+    //返回繁忙时的最大重试次数
+    private static final int MAX_RETRIES = Integer.getInteger("loadtest.retries", 20);
+    private static final long DRAIN_TIMEOUT_MILLIS = 120_000;
+
+    @LocalServerPort
+    private int port;
+    @Resource
+    private TestRestTemplate restTemplate;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillReconciler seckillReconciler;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    //redisson和订单消费者在容器启动时就会连接redis，需在容器启动前启动内嵌redis；
+    //停止操作注册为最先注册的销毁回调，容器关闭时在消费者、定时任务和redis连接都关闭后才执行，避免lettuce不断重连
+    static class EmbeddedRedisInitializer implements ApplicationContextInitializer<ConfigurableApplicationContext> {
+        @Override
+        public void initialize(ConfigurableApplicationContext context) {
+            RedisServer redisServer;
+            try {
+                redisServer = new RedisServer(6390);
+                redisServer.start();
+            } catch (IOException e) {
+                throw new IllegalStateException("启动内嵌redis失败", e);
+            }
+            ((DefaultSingletonBeanRegistry) context.getBeanFactory()).registerDisposableBean("embeddedRedis", redisServer::stop);
+        }
+    }
+
+    @Test
+    void seckillLoad() throws Exception {
+        //1、准备数据：秒杀券、登录用户；消费者组由应用启动时创建
+        Long voucherId = addVoucher();
+        for (int i = 1; i <= BUYERS; i++) {
+            Map<String, String> user = new HashMap<>();
+            user.put("id", String.valueOf(i));
+            user.put("nickName", "user_" + i);
+            stringRedisTemplate.opsForHash().putAll(LOGIN_USER_KEY + "load" + i, user);
+        }
+
+        //2、并发抢购，每个用户一直重试到成功、失败或超过重试次数
+        long[] latencies = new long[BUYERS * (MAX_RETRIES + 1)];
+        AtomicInteger requests = new AtomicInteger();
+        AtomicInteger success = new AtomicInteger();
+        AtomicInteger busy = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENCY, new NamedThreadFactory("load-buyer-", false));
+        CountDownLatch latch = new CountDownLatch(BUYERS);
+        String url = "http://localhost:" + port + "/voucher-order/seckill/" + voucherId;
+        long begin = System.nanoTime();
+        for (int i = 1; i <= BUYERS; i++) {
+            HttpHeaders headers = new HttpHeaders();
+            headers.set("authorization", "load" + i);
+            HttpEntity<Void> entity = new HttpEntity<>(headers);
+            executor.submit(() -> {
+                try {
+                    for (int attempt = 0; attempt <= MAX_RETRIES; attempt++) {
+                        long start = System.nanoTime();
+                        Result result = restTemplate.exchange(url, HttpMethod.POST, entity, Result.class).getBody();
+                        latencies[requests.getAndIncrement()] = System.nanoTime() - start;
+                        if(result == null){
+                            errors.incrementAndGet();
+                            return;
+                        }
+                        if(Boolean.TRUE.equals(result.getSuccess())){
+                            success.incrementAndGet();
+                            return;
+                        }
+                        if(!result.getErrorMsg().startsWith("系统繁忙")){
+                            return;
+                        }
+                        busy.incrementAndGet();
+                        TimeUnit.MILLISECONDS.sleep(10);
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long elapsed = System.nanoTime() - begin;
+        executor.shutdown();
+
+        //3、等待消息队列消费完成：数据库订单数达到成功数且没有pending消息
+        long drainBegin = System.nanoTime();
+        long orders = voucherOrderService.count();
+        while (orders < success.get() || pendingCount() > 0){
+            if(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - drainBegin) > DRAIN_TIMEOUT_MILLIS){
+                log.error("等待消息队列消费超时");
+                break;
+            }
+            TimeUnit.MILLISECONDS.sleep(50);
+            orders = voucherOrderService.count();
+        }
+        long drain = System.nanoTime() - drainBegin;
+
+        //4、输出报告
+        int total = requests.get();
+        long[] sorted = Arrays.copyOf(latencies, total);
+        Arrays.sort(sorted);
+        //分片模式下剩余库存为各分片之和
+        Integer redisStock = seckillStockShards.stockOf(Collections.singletonList(voucherId)).get(voucherId);
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        int expected = Math.min(BUYERS, STOCK);
+        log.info("\n===== 秒杀压测报告 =====\n" +
+                        "买家数：{}，库存：{}，并发：{}\n" +
+                        "请求数：{}，成功：{}，繁忙重试：{}，异常：{}\n" +
+                        "吞吐量：{} req/s，耗时：{} ms\n" +
+                        "延迟 p50：{} ms，p99：{} ms，p999：{} ms，max：{} ms\n" +
+                        "订单数：{}，超卖：{}，少卖：{}\n" +
+                        "redis剩余库存：{}，数据库剩余库存：{}\n" +
+                        "消息队列消费完成耗时：{} ms",
+                BUYERS, STOCK, CONCURRENCY,
+                total, success.get(), busy.get(), errors.get(),
+                String.format("%.1f", total * 1e9 / elapsed), TimeUnit.NANOSECONDS.toMillis(elapsed),
+                millis(percentile(sorted, 0.50)), millis(percentile(sorted, 0.99)),
+                millis(percentile(sorted, 0.999)), millis(percentile(sorted, 1.0)),
+                orders, Math.max(0, orders - STOCK), Math.max(0, expected - orders),
+                redisStock, seckillVoucher.getStock(),
+                TimeUnit.NANOSECONDS.toMillis(drain));
+
+        //5、对账：消费完成后redis与数据库应一致，有差异时输出警告日志
+        seckillReconciler.reconcile(voucherId);
+    }
+
+    private Long addVoucher(){
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(200L);
+        voucher.setType(1);
+        voucher.setStatus(1);
+        voucher.setStock(STOCK);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    private long pendingCount(){
+        return stringRedisTemplate.opsForStream().pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP).getTotalPendingMessages();
+    }
+
+    private static long percentile(long[] sorted, double p){
+        if(sorted.length == 0){
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static String millis(long nanos){
+        return String.format("%.2f", nanos / 1e6);
+    }
+}
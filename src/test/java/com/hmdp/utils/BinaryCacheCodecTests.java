@@ -0,0 +1,185 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.Shop;
+import lombok.Data;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 缓存编码：二进制编码的往返(空字段、时间、负数、压缩、逻辑过期)，字段签名不一致或内容损坏时按未命中返回null；
+ * json编码无法解析时同样返回null
+ */
+class BinaryCacheCodecTests {
+    private final BinaryCacheCodec codec = codec(1024);
+
+    @Test
+    void roundTripKeepsNullFields(){
+        Shop shop = shop();
+        shop.setArea(null);
+        shop.setAvgPrice(null);
+        shop.setOpenHours(null);
+        byte[] bytes = codec.encode(shop);
+        Shop decoded = codec.decode(bytes, Shop.class);
+        assertEquals(shop, decoded);
+        assertNull(decoded.getArea());
+        assertNull(decoded.getAvgPrice());
+        assertNull(decoded.getDistance());
+    }
+
+    @Test
+    void roundTripLocalDateTime(){
+        Shop shop = shop();
+        shop.setCreateTime(LocalDateTime.of(2023, 3, 18, 16, 40, 1, 123456789));
+        shop.setUpdateTime(LocalDateTime.of(1969, 12, 31, 23, 59, 59, 1));
+        Shop decoded = codec.decode(codec.encode(shop), Shop.class);
+        assertEquals(shop.getCreateTime(), decoded.getCreateTime());
+        assertEquals(shop.getUpdateTime(), decoded.getUpdateTime());
+    }
+
+    @Test
+    void roundTripNegativeAndExtremeNumbers(){
+        Numbers numbers = new Numbers();
+        numbers.setL(Long.MIN_VALUE);
+        numbers.setI(Integer.MIN_VALUE);
+        numbers.setS(Short.MIN_VALUE);
+        numbers.setB((byte) -1);
+        numbers.setD(-0.5);
+        numbers.setF(-1.25f);
+        numbers.setFlag(false);
+        numbers.setMax(Long.MAX_VALUE);
+        assertEquals(numbers, codec.decode(codec.encode(numbers), Numbers.class));
+    }
+
+    @Test
+    void compressesLargeValues(){
+        BinaryCacheCodec small = codec(64);
+        Shop shop = shop();
+        shop.setImages(StrUtil.repeat("https://img.hmdp.com/shop/1.jpg,", 50));
+        byte[] compressed = small.encode(shop);
+        byte[] plain = codec(0).encode(shop);
+        assertTrue((compressed[1] & 1) != 0, "超过阈值的内容应压缩");
+        assertTrue((plain[1] & 1) == 0, "阈值为0时不压缩");
+        assertTrue(compressed.length < plain.length);
+        assertEquals(shop, small.decode(compressed, Shop.class));
+        //压缩与否由标志位决定，阈值不同的节点可以互相读取
+        assertEquals(shop, codec(0).decode(compressed, Shop.class));
+        assertEquals(shop, small.decode(plain, Shop.class));
+    }
+
+    @Test
+    void roundTripExpiring(){
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.now().withNano(0).plusMinutes(30));
+        redisData.setComputeMillis(12L);
+        redisData.setData(shop());
+        RedisData decoded = codec.decodeExpiring(codec.encodeExpiring(redisData), Shop.class);
+        assertNotNull(decoded);
+        assertEquals(redisData.getExpireTime(), decoded.getExpireTime());
+        assertEquals(12L, decoded.getComputeMillis());
+        assertEquals(redisData.getData(), decoded.getData());
+        //逻辑过期和普通缓存的格式不能混用
+        assertNull(codec.decode(codec.encodeExpiring(redisData), Shop.class));
+        assertNull(codec.decodeExpiring(codec.encode(shop()), Shop.class));
+    }
+
+    @Test
+    void fingerprintMismatchIsMiss(){
+        byte[] bytes = codec.encode(new Numbers());
+        assertNull(codec.decode(bytes, Renamed.class));
+        assertNull(codec.decode(bytes, Shop.class));
+    }
+
+    @Test
+    void corruptedBytesAreMiss(){
+        byte[] bytes = codec.encode(shop());
+        assertNull(codec.decode(Arrays.copyOf(bytes, bytes.length / 2), Shop.class));
+        assertNull(codec.decode(new byte[]{1, 0}, Shop.class));
+        byte[] otherVersion = bytes.clone();
+        otherVersion[0] = 2;
+        assertNull(codec.decode(otherVersion, Shop.class));
+    }
+
+    @Test
+    void encodingIsStable(){
+        Shop shop = shop();
+        assertArrayEquals(codec.encode(shop), codec.encode(shop));
+        assertNotEquals(codec.encode(shop).length, new JsonCacheCodec().encode(shop).length);
+    }
+
+    @Test
+    void jsonDecodeErrorsAreMiss(){
+        JsonCacheCodec json = new JsonCacheCodec();
+        assertNull(json.decode("not json".getBytes(StandardCharsets.UTF_8), Shop.class));
+        //不是逻辑过期格式、data不是对象
+        assertNull(json.decodeExpiring(json.encode(shop()), Shop.class));
+        assertNull(json.decodeExpiring("{\"expireTime\":\"2023-03-18 16:40:00\",\"data\":[1,2]}".getBytes(StandardCharsets.UTF_8), Shop.class));
+        assertNull(json.decodeExpiring("[]".getBytes(StandardCharsets.UTF_8), Shop.class));
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.now().withNano(0));
+        redisData.setData(shop());
+        assertEquals(redisData.getData(), json.decodeExpiring(json.encodeExpiring(redisData), Shop.class).getData());
+    }
+
+    static BinaryCacheCodec codec(int compressThreshold){
+        BinaryCacheCodec codec = new BinaryCacheCodec();
+        ReflectionTestUtils.setField(codec, "compressThreshold", compressThreshold);
+        return codec;
+    }
+
+    static Shop shop(){
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setTypeId(1L);
+        shop.setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg");
+        shop.setArea("大关");
+        shop.setAddress("金华路锦昌文华苑29号");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setSold(4215);
+        shop.setComments(3035);
+        shop.setScore(37);
+        shop.setOpenHours("10:00-22:00");
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+        shop.setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        return shop;
+    }
+
+    @Data
+    static class Numbers {
+        private long l;
+        private int i;
+        private short s;
+        private byte b;
+        private double d;
+        private float f;
+        private boolean flag;
+        private Long max;
+    }
+
+    //与Numbers字段类型相同、字段名不同
+    @Data
+    static class Renamed {
+        private long l2;
+        private int i;
+        private short s;
+        private byte b;
+        private double d;
+        private float f;
+        private boolean flag;
+        private Long max;
+    }
+}
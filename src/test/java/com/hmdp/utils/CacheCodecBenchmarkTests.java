@@ -0,0 +1,49 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存编码基准：同一个Shop分别用json和二进制编码，输出编码后的字节数和编码、解码的平均耗时，用于对比编码格式的改动。
+ * 默认不执行，运行方式：mvn test -Dtest=CacheCodecBenchmarkTests -Dbenchmark=true [-Dbenchmark.iterations=..]
+ */
+@Slf4j
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class CacheCodecBenchmarkTests {
+    private static final int ITERATIONS = Integer.getInteger("benchmark.iterations", 200_000);
+
+    //防止循环被JIT优化掉
+    private long sink;
+
+    @Test
+    void compareCodecs(){
+        Shop shop = BinaryCacheCodecTests.shop();
+        CacheCodec[] codecs = {new JsonCacheCodec(), BinaryCacheCodecTests.codec(1024)};
+        //预热两轮，第三轮计时
+        for (int round = 0; round < 3; round++) {
+            StringBuilder report = new StringBuilder("\n===== 缓存编码基准 =====\n");
+            for (CacheCodec codec : codecs) {
+                byte[] bytes = codec.encode(shop);
+                long encode = nanosPerOp(() -> sink += codec.encode(shop).length);
+                long decode = nanosPerOp(() -> sink += codec.decode(bytes, Shop.class).getSold());
+                report.append(String.format("%-6s 大小：%d 字节，编码：%.2f µs，解码：%.2f µs%n",
+                        codec.name(), bytes.length, encode / 1000.0, decode / 1000.0));
+            }
+            if(round == 2){
+                log.info("{}迭代次数：{}，sink：{}", report, ITERATIONS, sink);
+            }
+        }
+    }
+
+    private static long nanosPerOp(Runnable op){
+        long begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            op.run();
+        }
+        return (System.nanoTime() - begin) / ITERATIONS;
+    }
+}
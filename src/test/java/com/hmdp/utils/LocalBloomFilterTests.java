@@ -0,0 +1,64 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 本地布隆过滤器：添加过的元素一定判断为存在(无漏判)，未添加元素的误判率接近构造时配置的fpp
+ */
+class LocalBloomFilterTests {
+    private static final int INSERTIONS = 100_000;
+
+    @Test
+    void noFalseNegatives(){
+        LocalBloomFilter filter = new LocalBloomFilter(INSERTIONS, 0.01);
+        for (int i = 0; i < INSERTIONS; i++) {
+            filter.put("cache:shop:" + i);
+        }
+        for (int i = 0; i < INSERTIONS; i++) {
+            assertTrue(filter.mightContain("cache:shop:" + i), "漏判：" + i);
+        }
+    }
+
+    @Test
+    void falsePositiveRateCloseToConfigured(){
+        for (double fpp : new double[]{0.01, 0.001}) {
+            LocalBloomFilter filter = new LocalBloomFilter(INSERTIONS, fpp);
+            for (int i = 0; i < INSERTIONS; i++) {
+                filter.put("cache:shop:" + i);
+            }
+            //用从未添加过的id统计误判率，允许2倍的统计波动
+            int probes = 1_000_000;
+            int falsePositives = 0;
+            for (int i = INSERTIONS; i < INSERTIONS + probes; i++) {
+                if(filter.mightContain("cache:shop:" + i)){
+                    falsePositives++;
+                }
+            }
+            double rate = (double) falsePositives / probes;
+            assertTrue(rate <= fpp * 2, "误判率" + rate + "超过配置" + fpp + "的2倍");
+        }
+    }
+
+    @Test
+    void concurrentPutsAreNotLost() throws InterruptedException {
+        LocalBloomFilter filter = new LocalBloomFilter(INSERTIONS, 0.01);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = offset; i < INSERTIONS; i += threads.length) {
+                    filter.put("cache:shop:" + i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < INSERTIONS; i++) {
+            assertTrue(filter.mightContain("cache:shop:" + i), "并发添加后漏判：" + i);
+        }
+    }
+}